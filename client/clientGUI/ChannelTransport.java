@@ -0,0 +1,522 @@
+package client.clientGUI;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * ChannelTransport multiplexes many chat sessions over a small pool of selector threads.
+ * Instead of one blocking socket and one listener thread per ChatClient, every session
+ * registers a non-blocking SocketChannel with one of the selector loops owned by this
+ * transport. A single transport can therefore carry thousands of sessions in one JVM.
+ *
+ * Callbacks registered by a session are invoked on the selector thread that owns it,
+ * so they must return quickly and must never block.
+ *
+ * Sessions may optionally be encrypted with an SSLEngine. Handshake and record
+ * processing then happen on the selector thread as well; only the ciphertext
+ * buffers are kept per session, plaintext is decoded through a per-thread buffer.
+ */
+public class ChannelTransport implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SelectorLoop[] loops;                          // Selector threads
+    private final AtomicInteger nextLoop = new AtomicInteger();  // Round-robin loop index
+    private volatile boolean isOpen;                             // Transport status flag
+
+    /**
+     * Creates a transport with a single selector thread
+     */
+    public ChannelTransport() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Creates a transport with the given number of selector threads
+     *
+     * @param threads Number of selector loops sharing the sessions
+     * @throws IOException If a selector cannot be opened
+     */
+    public ChannelTransport(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+        loops = new SelectorLoop[threads];
+        isOpen = true;
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new SelectorLoop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Registers a connected channel with one of the selector loops
+     *
+     * @param channel Connected socket channel; it is switched to non-blocking mode
+     * @param lineHandler Callback for every line received from the server
+     * @param closeHandler Callback invoked once when the session closes, with the
+     *                     error that closed it or null for an orderly close
+     * @return The session used to send lines and close the connection
+     * @throws IOException If the channel cannot be configured
+     */
+    Session open(SocketChannel channel, Consumer<String> lineHandler,
+                 Consumer<IOException> closeHandler) throws IOException {
+        return open(channel, null, new FrameDecoder(lineHandler), closeHandler);
+    }
+
+    /**
+     * Registers a connected channel whose traffic is encrypted by the given engine
+     *
+     * @param channel Connected socket channel; it is switched to non-blocking mode
+     * @param engine Client-mode SSLEngine, or null for a plaintext session
+     * @param decoder Decoder that receives every byte read from the server
+     * @param closeHandler Callback invoked once when the session closes
+     * @return The session used to send lines and close the connection
+     * @throws IOException If the channel cannot be configured
+     */
+    Session open(SocketChannel channel, SSLEngine engine, FrameDecoder decoder,
+                 Consumer<IOException> closeHandler) throws IOException {
+        if (!isOpen) {
+            throw new IOException("Transport is closed");
+        }
+        channel.configureBlocking(false);
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Session session = new Session(loop, channel, engine, decoder, closeHandler);
+        loop.execute(session::register);
+        return session;
+    }
+
+    /**
+     * Stops all selector threads and closes every session they own
+     */
+    @Override
+    public void close() {
+        isOpen = false;
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * A selector thread and the task queue used to hand it work from other threads
+     */
+    private class SelectorLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private ByteBuffer plainBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);  // Decrypted records
+
+        SelectorLoop(int index) throws IOException {
+            super("chat-selector-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queues a task to run on this selector thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isOpen) {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session session = (Session) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                session.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug or bad input in one session must not take down the others
+                            fail(session, e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Selector loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Session) key.attachment()).closeNow(null);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Selector task failed: " + e);
+                }
+            }
+        }
+
+        /**
+         * Closes a session whose handling threw, keeping the loop running for the rest
+         */
+        private void fail(Session session, RuntimeException e) {
+            System.err.println("Closing session after an unexpected error: " + e);
+            try {
+                session.closeNow(new IOException("Unexpected error: " + e, e));
+            } catch (RuntimeException closeFailure) {
+                System.err.println("Error closing session: " + closeFailure);
+            }
+        }
+    }
+
+    /**
+     * One chat connection carried by the transport. Lines may be sent from any thread;
+     * all channel I/O happens on the owning selector thread.
+     */
+    class Session {
+        private final SelectorLoop loop;
+        private final SocketChannel channel;
+        private final SSLEngine engine;              // Null for plaintext sessions
+        private final FrameDecoder decoder;
+        private final Consumer<IOException> closeHandler;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;                    // Set once registered
+        private ByteBuffer netIn;                    // Ciphertext read but not yet unwrapped
+        private ByteBuffer netOut;                   // Ciphertext wrapped but not yet written
+        private volatile boolean closeRequested;     // Close once outbound is drained
+        private volatile boolean closed;
+
+        Session(SelectorLoop loop, SocketChannel channel, SSLEngine engine,
+                FrameDecoder decoder, Consumer<IOException> closeHandler) {
+            this.loop = loop;
+            this.channel = channel;
+            this.engine = engine;
+            this.decoder = decoder;
+            this.closeHandler = closeHandler;
+            if (engine != null) {
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                netOut.flip();  // Nothing pending
+            }
+        }
+
+        /**
+         * Queues a line for delivery to the server
+         *
+         * @return false if the session is already closed
+         */
+        boolean send(String line) {
+            return send((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Queues an already encoded frame for delivery to the server
+         *
+         * @return false if the session is already closed
+         */
+        boolean send(byte[] frame) {
+            if (closed || closeRequested) {
+                return false;
+            }
+            outbound.add(ByteBuffer.wrap(frame));
+            scheduleFlush();
+            return true;
+        }
+
+        /**
+         * Closes the session once every queued line has been written
+         */
+        void close() {
+            closeRequested = true;
+            scheduleFlush();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                if (engine != null) {
+                    engine.beginHandshake();
+                    flush();
+                }
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        }
+
+        /**
+         * Reads whatever is available and hands complete lines to the decoder
+         */
+        private void read(ByteBuffer buffer) {
+            try {
+                if (engine != null) {
+                    readEncrypted();
+                    return;
+                }
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    closeNow(null);
+                    return;
+                }
+                buffer.flip();
+                decoder.feed(buffer);
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        }
+
+        /**
+         * Reads ciphertext and unwraps as many complete TLS records as are available
+         */
+        private void readEncrypted() throws IOException {
+            int count = channel.read(netIn);
+            if (count < 0) {
+                closeNow(null);
+                return;
+            }
+            netIn.flip();
+            while (!closed) {
+                ByteBuffer plain = loop.plainBuffer;
+                plain.clear();
+                SSLEngineResult result = engine.unwrap(netIn, plain);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        loop.plainBuffer = ByteBuffer.allocate(
+                            engine.getSession().getApplicationBufferSize() + plain.capacity());
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+                            // A single record is larger than the buffer
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        } else {
+                            netIn.compact();
+                        }
+                        return;
+                    case CLOSED:
+                        closeNow(null);
+                        return;
+                    default:
+                        break;
+                }
+                if (plain.position() > 0) {
+                    plain.flip();
+                    decoder.feed(plain);
+                }
+                if (handleHandshake(result.getHandshakeStatus())) {
+                    flush();
+                }
+                if (!netIn.hasRemaining()
+                        || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    break;
+                }
+            }
+            netIn.compact();
+        }
+
+        /**
+         * Runs delegated handshake tasks and reports whether the engine wants to write
+         */
+        private boolean handleHandshake(SSLEngineResult.HandshakeStatus status) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                status = engine.getHandshakeStatus();
+            }
+            return status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                || status == SSLEngineResult.HandshakeStatus.FINISHED;
+        }
+
+        /**
+         * Writes queued lines until the queue is empty or the socket buffer is full
+         */
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                if (engine != null ? flushEncrypted() : flushPlain()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    if (closeRequested && outbound.isEmpty()) {
+                        sendCloseNotify();
+                        closeNow(null);
+                    }
+                } else {
+                    // Socket buffer is full - resume when the channel is writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        }
+
+        /**
+         * @return true once everything queued has been written
+         */
+        private boolean flushPlain() throws IOException {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+                outbound.poll();
+            }
+            return true;
+        }
+
+        /**
+         * Wraps handshake messages and queued lines into TLS records and writes them.
+         * Application data is held back until the handshake has completed.
+         *
+         * @return true once nothing more can be written right now
+         */
+        private boolean flushEncrypted() throws IOException {
+            if (!writeNetOut()) {
+                return false;
+            }
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                ByteBuffer source;
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    source = EMPTY;
+                } else if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    handleHandshake(status);
+                    continue;
+                } else if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    source = outbound.peek();
+                    if (source == null) {
+                        return true;
+                    }
+                } else {
+                    // Waiting for the server's handshake messages
+                    return true;
+                }
+
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(source, netOut);
+                netOut.flip();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    netOut.flip();
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS session closed by peer");
+                }
+                handleHandshake(result.getHandshakeStatus());
+                if (source != EMPTY && !source.hasRemaining()) {
+                    outbound.poll();
+                }
+                if (!writeNetOut()) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return true if all pending ciphertext was written
+         */
+        private boolean writeNetOut() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Best-effort close_notify so the server sees an orderly TLS shutdown
+         */
+        private void sendCloseNotify() {
+            if (engine == null) {
+                return;
+            }
+            try {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            } catch (IOException e) {
+                // The channel is being closed anyway
+            }
+        }
+
+        /**
+         * Closes the channel immediately and notifies the owner exactly once
+         */
+        private void closeNow(IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outbound.clear();
+            decoder.reset();
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing session: " + e.getMessage());
+            }
+            closeHandler.accept(cause);
+        }
+    }
+
+    /**
+     * Returns a larger buffer holding the remaining bytes of a buffer in read mode.
+     * The returned buffer is left in write mode.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() + extra);
+        grown.put(buffer);
+        return grown;
+    }
+}
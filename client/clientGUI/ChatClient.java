@@ -2,21 +2,78 @@ package client.clientGUI;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 /**
  * ChatClient handles all the networking and message handling logic for the chat application.
  * This class manages the connection to the server, sending messages, and receiving messages.
  * It uses callbacks to communicate with the GUI layer.
+ *
+ * By default each client owns a blocking socket and a listener thread. When constructed
+ * with a shared ChannelTransport the client instead runs as a non-blocking session on the
+ * transport's selector threads, which allows thousands of clients in one process.
+ *
+ * Either mode can be encrypted with TLS by supplying an SSLContext via useTls().
+ *
+ * Unless disabled, the client offers "/caps deflate" after its username. Once the
+ * server confirms, long messages are sent compressed and compressed messages from
+ * the server are expanded before they reach the message handler.
+ *
+ * Files can be offered to the other users with offerFile() and received with
+ * acceptFile(); progress is reported to a FileTransferListener.
+ *
+ * search() queries the server's chat history. The server answers with one
+ * "/search-result" line per match and a closing "/search-end", which are collected
+ * and handed to the search handler as a single list.
+ *
+ * sendDirectMessage() sends a private message to one user. Users who are offline get it
+ * when they next log in, as part of a "/mailbox" burst.
  */
 public class ChatClient {
     private static final int DEFAULT_PORT = 5000;
     
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private InputStream in;
+    private FrameDecoder decoder;
     private String username;
-    private boolean isConnected;
+    private volatile boolean isConnected;
+    
+    // Per-connection compression, negotiated with the server
+    private final MessageCompression compression = new MessageCompression();
+    private boolean compressionEnabled = true;
+    private volatile boolean serverCompression;
+    
+    // File transfers in both directions
+    private final FileTransferManager fileTransfers = new FileTransferManager(this::writeFrame);
+    
+    // History search: results are collected until "/search-end" arrives
+    private Consumer<List<SearchResult>> searchHandler;
+    private List<SearchResult> searchResults = new ArrayList<>();
+    
+    // Direct messages still to come in the current "/mailbox" burst
+    private int mailboxRemaining;
+    private static final DateTimeFormatter MAILBOX_TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    
+    // Shared non-blocking transport, or null for a dedicated blocking socket
+    private final ChannelTransport transport;
+    private ChannelTransport.Session session;
+    
+    // TLS context shared across reconnects so sessions can be resumed, or null for plaintext
+    private SSLContext sslContext;
     
     // Callback handlers for GUI updates
     private final Consumer<String> messageHandler;
@@ -33,32 +90,183 @@ public class ChatClient {
     public ChatClient(Consumer<String> messageHandler, 
                      Consumer<String> errorHandler,
                      Consumer<Boolean> connectionHandler) {
+        this(messageHandler, errorHandler, connectionHandler, null);
+    }
+    
+    /**
+     * Constructor for a ChatClient carried by a shared ChannelTransport.
+     * Callbacks are invoked on the transport's selector thread and must not block.
+     * 
+     * @param messageHandler Callback for handling incoming messages
+     * @param errorHandler Callback for handling errors
+     * @param connectionHandler Callback for handling connection state changes
+     * @param transport Shared transport, or null to use a dedicated blocking socket
+     */
+    public ChatClient(Consumer<String> messageHandler, 
+                     Consumer<String> errorHandler,
+                     Consumer<Boolean> connectionHandler,
+                     ChannelTransport transport) {
         this.messageHandler = messageHandler;
         this.errorHandler = errorHandler;
         this.connectionHandler = connectionHandler;
+        this.transport = transport;
         this.isConnected = false;
     }
     
     /**
-     * Attempts to connect to the chat server
+     * Enables TLS for subsequent connections. Keep passing the same context
+     * across reconnects so the TLS session can be resumed.
+     * 
+     * @param sslContext The TLS context to use, or null to connect in plaintext
+     */
+    public void useTls(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+    
+    /**
+     * Controls whether the next connection offers message compression to the server
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+    
+    /**
+     * @return true if the server agreed to exchange compressed messages
+     */
+    public boolean isCompressionActive() {
+        return serverCompression;
+    }
+    
+    /**
+     * Sets the callback that receives the results of search(), newest first.
+     * Without one, results are shown as ordinary messages.
+     */
+    public void setSearchHandler(Consumer<List<SearchResult>> searchHandler) {
+        this.searchHandler = searchHandler;
+    }
+    
+    /**
+     * Searches the server's chat history
+     * 
+     * @param query Words that must all appear, optionally with "from:user",
+     *              "after:yyyy-MM-dd" and "before:yyyy-MM-dd[THH:mm]" filters
+     * @return true if the query was sent
+     */
+    public boolean search(String query) {
+        if (!isConnected || query == null || query.trim().isEmpty()) {
+            return false;
+        }
+        try {
+            writeFrame(encodeLine("/search " + query.trim()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Sends a private message to one user. If they are offline the server keeps it
+     * until they next log in; either way the outcome is reported as a message.
+     * 
+     * @param user The recipient's username
+     * @param text The message
+     * @return true if the message was sent to the server
+     */
+    public boolean sendDirectMessage(String user, String text) {
+        if (!isConnected || user == null || user.isEmpty() || text == null || text.trim().isEmpty()) {
+            return false;
+        }
+        try {
+            // Never compressed: the server must see the command to keep it private
+            writeFrame(encodeLine("/msg " + URLEncoder.encode(user, StandardCharsets.UTF_8) + " "
+                + URLEncoder.encode(text, StandardCharsets.UTF_8)));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Sets the listener that is told about file offers and transfer progress
+     */
+    public void setFileTransferListener(FileTransferListener listener) {
+        fileTransfers.setListener(listener);
+    }
+    
+    /**
+     * Offers a file to every other user in the chat. The file is streamed once
+     * someone accepts it.
+     * 
+     * @param file The file to send
+     * @throws IOException If not connected or the file cannot be read
+     */
+    public void offerFile(File file) throws IOException {
+        if (!isConnected) {
+            throw new IOException("Not connected");
+        }
+        fileTransfers.offer(file);
+    }
+    
+    /**
+     * Accepts a file announced through FileTransferListener.fileOffered()
+     * 
+     * @param id The transfer id from the offer
+     * @param destination Where to write the received file
+     * @throws IOException If not connected or the destination cannot be created
+     */
+    public void acceptFile(long id, File destination) throws IOException {
+        if (!isConnected) {
+            throw new IOException("Not connected");
+        }
+        fileTransfers.accept(id, destination);
+    }
+    
+    /**
+     * Attempts to connect to the chat server on the default port
      * 
      * @param serverIP The IP address of the server
      * @param username The username for the chat session
      * @throws IOException If connection fails
      */
     public void connect(String serverIP, String username) throws IOException {
+        connect(serverIP, DEFAULT_PORT, username);
+    }
+    
+    /**
+     * Attempts to connect to the chat server
+     * 
+     * @param serverIP The IP address of the server
+     * @param port The port the server listens on
+     * @param username The username for the chat session
+     * @throws IOException If connection fails
+     */
+    public void connect(String serverIP, int port, String username) throws IOException {
         if (isConnected) {
             return;
         }
         
+        if (transport != null) {
+            connectSession(serverIP, port, username);
+            return;
+        }
+        
         try {
             this.username = username;
-            socket = new Socket(serverIP, DEFAULT_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (sslContext != null) {
+                SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(serverIP, port);
+                sslSocket.setSSLParameters(verifyingParameters(sslSocket.getSSLParameters()));
+                sslSocket.startHandshake();
+                socket = sslSocket;
+            } else {
+                socket = new Socket(serverIP, port);
+            }
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = socket.getInputStream();
+            decoder = new FrameDecoder(this::handleLine);
             
             // Send username to server as first message
-            out.println(username);
+            writeFrame(encodeLine(username));
+            offerCapabilities();
             
             // Start message listener in separate thread
             new Thread(new MessageListener()).start();
@@ -72,6 +280,228 @@ public class ChatClient {
         }
     }
     
+    /**
+     * Connects through the shared transport instead of a dedicated socket
+     */
+    private void connectSession(String serverIP, int port, String username) throws IOException {
+        this.username = username;
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(serverIP, port));
+            SSLEngine engine = null;
+            if (sslContext != null) {
+                // Host and port let the engine find a cached session to resume
+                engine = sslContext.createSSLEngine(serverIP, port);
+                engine.setUseClientMode(true);
+                engine.setSSLParameters(verifyingParameters(engine.getSSLParameters()));
+            }
+            decoder = new FrameDecoder(this::handleLine);
+            session = transport.open(channel, engine, decoder, this::handleSessionClosed);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        
+        // Send username to server as first message
+        session.send(username);
+        offerCapabilities();
+        
+        isConnected = true;
+        connectionHandler.accept(true);
+    }
+    
+    /**
+     * Tells the server which optional features this client understands
+     */
+    private void offerCapabilities() throws IOException {
+        if (compressionEnabled) {
+            writeFrame(encodeLine("/caps " + MessageCompression.CAPABILITY));
+        }
+    }
+    
+    /**
+     * @return The length in a compressed frame header, or -1 if it is not a number
+     *         from 0 to MessageCompression.MAX_MESSAGE_SIZE
+     */
+    private static int parseLength(String field) {
+        try {
+            int length = Integer.parseInt(field);
+            return length <= MessageCompression.MAX_MESSAGE_SIZE ? length : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Handles one line from the server, intercepting protocol frames
+     */
+    private void handleLine(String line) {
+        if (line.startsWith("/caps ")) {
+            serverCompression = line.substring(6).contains(MessageCompression.CAPABILITY);
+        } else if (line.startsWith("/z ")) {
+            String[] parts = line.split(" ");
+            int compressedLength = parts.length == 3 ? parseLength(parts[1]) : -1;
+            int originalLength = parts.length == 3 ? parseLength(parts[2]) : -1;
+            if (compressedLength < 0 || originalLength < 0) {
+                // The payload length is unknown, so the rest of the stream cannot be framed
+                dropConnection("Received a malformed compressed message header: " + line);
+                return;
+            }
+            decoder.expectBinary(compressedLength, data -> {
+                try {
+                    messageHandler.accept(compression.decompress(data, originalLength));
+                } catch (DataFormatException e) {
+                    errorHandler.accept("Received a corrupt compressed message: " + e.getMessage());
+                }
+            });
+        } else if (line.startsWith("/search-")) {
+            handleSearchLine(line);
+        } else if (line.startsWith("/dm") || line.startsWith("/mailbox ")) {
+            handleDirectMessageLine(line);
+        } else {
+            boolean consumed;
+            try {
+                consumed = fileTransfers.handleLine(line, decoder);
+            } catch (IllegalStateException e) {
+                dropConnection(e.getMessage());
+                return;
+            }
+            if (!consumed) {
+                messageHandler.accept(line);
+            }
+        }
+    }
+    
+    /**
+     * Collects search results and delivers them once the server has sent them all
+     */
+    private void handleSearchLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts[0].equals("/search-result") && parts.length == 5) {
+            try {
+                searchResults.add(new SearchResult(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    URLDecoder.decode(parts[3], StandardCharsets.UTF_8),
+                    URLDecoder.decode(parts[4], StandardCharsets.UTF_8)));
+            } catch (IllegalArgumentException e) {
+                // Not a well-formed result - leave it out rather than lose the connection
+                errorHandler.accept("Skipped a malformed search result: " + e.getMessage());
+            }
+        } else if (parts[0].equals("/search-end")) {
+            List<SearchResult> results = searchResults;
+            searchResults = new ArrayList<>();
+            Consumer<List<SearchResult>> handler = searchHandler;
+            if (handler != null) {
+                handler.accept(results);
+                return;
+            }
+            messageHandler.accept("Search found " + (parts.length > 2 ? parts[2] : results.size())
+                + " messages" + (results.isEmpty() ? "" : ", newest first:"));
+            for (SearchResult result : results) {
+                messageHandler.accept("  " + result.getSender() + ": " + result.getText());
+            }
+        } else if (parts[0].equals("/search-error") && parts.length > 1) {
+            searchResults = new ArrayList<>();
+            String reason;
+            try {
+                reason = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                reason = parts[1];
+            }
+            errorHandler.accept("Search failed: " + reason);
+        } else {
+            messageHandler.accept(line);
+        }
+    }
+    
+    /**
+     * Turns direct message frames into readable messages
+     */
+    private void handleDirectMessageLine(String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (parts[0].equals("/mailbox") && parts.length == 2) {
+                mailboxRemaining = Math.max(0, Integer.parseInt(parts[1]));
+                messageHandler.accept("You have " + mailboxRemaining + " private message"
+                    + (mailboxRemaining == 1 ? "" : "s") + " from while you were away:");
+            } else if (parts[0].equals("/dm") && parts.length == 4) {
+                String sender = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+                String text = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+                if (mailboxRemaining > 0) {
+                    long sentAt = Long.parseLong(parts[1]);
+                    mailboxRemaining--;
+                    String time = MAILBOX_TIME_FORMAT.format(Instant.ofEpochMilli(sentAt));
+                    messageHandler.accept("(private, " + time + ") " + sender + ": " + text);
+                } else {
+                    messageHandler.accept("(private) " + sender + ": " + text);
+                }
+            } else if (parts[0].equals("/dm-sent") && parts.length == 3) {
+                String user = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+                messageHandler.accept(parts[2].equals("stored")
+                    ? user + " is offline; your message will be delivered when they log in"
+                    : "Private message sent to " + user);
+            } else if (parts[0].equals("/dm-failed") && parts.length == 3) {
+                errorHandler.accept("Private message not sent: " + URLDecoder.decode(parts[2], StandardCharsets.UTF_8));
+            } else {
+                messageHandler.accept(line);
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a well-formed direct message frame - show it as a normal message
+            messageHandler.accept(line);
+        }
+    }
+    
+    private static byte[] encodeLine(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes an encoded frame through whichever transport this client uses
+     */
+    private void writeFrame(byte[] frame) throws IOException {
+        ChannelTransport.Session current = session;
+        if (current != null) {
+            if (!current.send(frame)) {
+                throw new IOException("Session is closed");
+            }
+            return;
+        }
+        OutputStream stream = out;
+        if (stream == null) {
+            throw new IOException("Not connected");
+        }
+        synchronized (stream) {
+            stream.write(frame);
+            stream.flush();
+        }
+    }
+    
+    /**
+     * Requires the server certificate to match the host name or IP we connected to
+     */
+    private static SSLParameters verifyingParameters(SSLParameters parameters) {
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        return parameters;
+    }
+    
+    /**
+     * Reports a frame that leaves the rest of the stream unreadable and disconnects
+     */
+    private void dropConnection(String reason) {
+        errorHandler.accept(reason);
+        disconnect();
+    }
+    
+    /**
+     * Called by the transport when the session's channel has closed
+     */
+    private void handleSessionClosed(IOException cause) {
+        if (isConnected) {
+            String reason = cause != null ? cause.getMessage() : "closed by server";
+            errorHandler.accept("Lost connection to server: " + reason);
+            disconnect();
+        }
+    }
+    
     /**
      * Disconnects from the chat server
      */
@@ -80,11 +510,24 @@ public class ChatClient {
             return;
         }
         
+        serverCompression = false;
+        compression.end();
+        fileTransfers.cancelAll();
+        
+        if (session != null) {
+            isConnected = false;
+            session.send("/quit");
+            session.close();
+            session = null;
+            connectionHandler.accept(false);
+            return;
+        }
+        
         try {
             isConnected = false;
             
             if (out != null) {
-                out.println("/quit");
+                writeFrame(encodeLine("/quit"));
             }
             
             if (socket != null && !socket.isClosed()) {
@@ -116,8 +559,13 @@ public class ChatClient {
             return false;
         }
         
-        out.println(message);
-        return !out.checkError();
+        byte[] frame = serverCompression ? compression.compressFrame(message) : null;
+        try {
+            writeFrame(frame != null ? frame : encodeLine(message));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
     }
     
     /**
@@ -140,10 +588,11 @@ public class ChatClient {
     private class MessageListener implements Runnable {
         @Override
         public void run() {
+            byte[] buffer = new byte[8 * 1024];
             try {
-                String message;
-                while (isConnected && (message = in.readLine()) != null) {
-                    messageHandler.accept(message);
+                int count;
+                while (isConnected && (count = in.read(buffer)) >= 0) {
+                    decoder.feed(buffer, 0, count);
                 }
             } catch (IOException e) {
                 if (isConnected) {
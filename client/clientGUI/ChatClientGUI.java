@@ -3,7 +3,13 @@ package client.clientGUI;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import javax.net.ssl.SSLContext;
 
 /**
  * ChatClientGUI provides the user interface for the chat application.
@@ -14,15 +20,24 @@ public class ChatClientGUI extends JFrame {
     // UI Components
     private JTextField serverIPField;
     private JTextField usernameField;
+    private JCheckBox tlsCheckBox;
     private JLabel connectedLabel;
     private JButton disconnectButton;
     private JTextArea messagesArea;
     private JTextField messageField;
     private JButton sendButton;
+    private JButton sendFileButton;
+    private JProgressBar transferProgressBar;
     
     // Chat client instance
     private final ChatClient chatClient;
     
+    private static final DateTimeFormatter SEARCH_TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    
+    // TLS context kept for the lifetime of the window so reconnects resume the session
+    private SSLContext sslContext;
+    
     /**
      * Constructor sets up the GUI and initializes the ChatClient
      */
@@ -33,6 +48,8 @@ public class ChatClientGUI extends JFrame {
             this::handleError,        // Error handler
             this::handleConnection    // Connection handler
         );
+        chatClient.setFileTransferListener(new TransferListener());
+        chatClient.setSearchHandler(this::handleSearchResults);
         
         initializeGUI();
         setupListeners();
@@ -52,7 +69,7 @@ public class ChatClientGUI extends JFrame {
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
         
         // Connection Panel
-        JPanel connectionPanel = new JPanel(new GridLayout(2, 1, 0, 10));
+        JPanel connectionPanel = new JPanel(new GridLayout(3, 1, 0, 10));
         
         // Server IP input
         JPanel serverIPPanel = new JPanel(new BorderLayout());
@@ -72,8 +89,13 @@ public class ChatClientGUI extends JFrame {
         usernamePanel.add(usernameLabel, BorderLayout.WEST);
         usernamePanel.add(usernameField, BorderLayout.CENTER);
         
+        // TLS option - trusts the store named by the javax.net.ssl.trustStore properties
+        tlsCheckBox = new JCheckBox("Use TLS");
+        tlsCheckBox.setFont(new Font("Arial", Font.PLAIN, 20));
+        
         connectionPanel.add(serverIPPanel);
         connectionPanel.add(usernamePanel);
+        connectionPanel.add(tlsCheckBox);
         
         // Status Panel
         JPanel statusPanel = new JPanel(new BorderLayout(10, 0));
@@ -105,8 +127,20 @@ public class ChatClientGUI extends JFrame {
         sendButton = new JButton("Send");
         sendButton.setFont(new Font("Arial", Font.PLAIN, 20));
         sendButton.setEnabled(false);
+        sendFileButton = new JButton("Send File");
+        sendFileButton.setFont(new Font("Arial", Font.PLAIN, 20));
+        sendFileButton.setEnabled(false);
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 10, 0));
+        buttonPanel.add(sendButton);
+        buttonPanel.add(sendFileButton);
         inputPanel.add(messageField, BorderLayout.CENTER);
-        inputPanel.add(sendButton, BorderLayout.EAST);
+        inputPanel.add(buttonPanel, BorderLayout.EAST);
+        
+        // File transfer progress, shown for the most recently updated transfer
+        transferProgressBar = new JProgressBar(0, 100);
+        transferProgressBar.setFont(new Font("Arial", Font.PLAIN, 16));
+        transferProgressBar.setStringPainted(true);
+        transferProgressBar.setString("No file transfer");
         
         // Add components to main panel
         mainPanel.add(connectionPanel);
@@ -116,6 +150,8 @@ public class ChatClientGUI extends JFrame {
         mainPanel.add(messagesPanel);
         mainPanel.add(Box.createRigidArea(new Dimension(0, 20)));
         mainPanel.add(inputPanel);
+        mainPanel.add(Box.createRigidArea(new Dimension(0, 10)));
+        mainPanel.add(transferProgressBar);
         
         add(mainPanel);
         pack();
@@ -133,6 +169,7 @@ public class ChatClientGUI extends JFrame {
         
         sendButton.addActionListener(e -> sendMessage());
         messageField.addActionListener(e -> sendMessage());
+        sendFileButton.addActionListener(e -> sendFile());
         
         // Handle window closing
         addWindowListener(new WindowAdapter() {
@@ -156,6 +193,14 @@ public class ChatClientGUI extends JFrame {
         }
         
         try {
+            if (tlsCheckBox.isSelected()) {
+                if (sslContext == null) {
+                    sslContext = ClientTls.createContextFromSystemProperties();
+                }
+                chatClient.useTls(sslContext);
+            } else {
+                chatClient.useTls(null);
+            }
             chatClient.connect(serverIP, username);
         } catch (IOException e) {
             handleError("Connection failed: " + e.getMessage());
@@ -163,10 +208,28 @@ public class ChatClientGUI extends JFrame {
     }
     
     /**
-     * Sends the current message to the server
+     * Sends the current message to the server. "/search words" searches
+     * the chat history instead, and "/msg user text" sends a private message.
      */
     private void sendMessage() {
         String message = messageField.getText().trim();
+        if (message.startsWith("/msg ") && chatClient.isConnected()) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3 && chatClient.sendDirectMessage(parts[1], parts[2])) {
+                messageField.setText("");
+            } else {
+                handleError(parts.length == 3 ? "Failed to send private message" : "Usage: /msg user text");
+            }
+            return;
+        }
+        if (message.startsWith("/search ") && chatClient.isConnected()) {
+            if (chatClient.search(message.substring(8))) {
+                messageField.setText("");
+            } else {
+                handleError("Failed to send search");
+            }
+            return;
+        }
         if (!message.isEmpty() && chatClient.isConnected()) {
             if (chatClient.sendMessage(message)) {
                 messageField.setText("");
@@ -176,6 +239,23 @@ public class ChatClientGUI extends JFrame {
         }
     }
     
+    /**
+     * Lets the user pick a file and offers it to the other users
+     */
+    private void sendFile() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        try {
+            chatClient.offerFile(file);
+            handleMessage("You offered " + file.getName() + " (" + file.length() + " bytes)");
+        } catch (IOException e) {
+            handleError("Failed to offer file: " + e.getMessage());
+        }
+    }
+    
     /**
      * Handles incoming messages from the server
      */
@@ -186,6 +266,22 @@ public class ChatClientGUI extends JFrame {
         });
     }
     
+    /**
+     * Shows the results of a history search in the message area, oldest first
+     * so they read like the chat itself
+     */
+    private void handleSearchResults(List<SearchResult> results) {
+        StringBuilder text = new StringBuilder("--- Search: " + results.size() + " result"
+            + (results.size() == 1 ? "" : "s") + " ---\n");
+        for (int i = results.size() - 1; i >= 0; i--) {
+            SearchResult result = results.get(i);
+            text.append('[').append(SEARCH_TIME_FORMAT.format(Instant.ofEpochMilli(result.getTimestamp())))
+                .append("] ").append(result.getSender()).append(": ").append(result.getText()).append('\n');
+        }
+        text.append("--- End of search ---");
+        handleMessage(text.toString());
+    }
+    
     /**
      * Handles error messages
      */
@@ -202,9 +298,11 @@ public class ChatClientGUI extends JFrame {
         SwingUtilities.invokeLater(() -> {
             serverIPField.setEnabled(!connected);
             usernameField.setEnabled(!connected);
+            tlsCheckBox.setEnabled(!connected);
             disconnectButton.setEnabled(connected);
             messageField.setEnabled(connected);
             sendButton.setEnabled(connected);
+            sendFileButton.setEnabled(connected);
             
             if (connected) {
                 connectedLabel.setText("Connected to: " + serverIPField.getText().trim());
@@ -214,6 +312,73 @@ public class ChatClientGUI extends JFrame {
         });
     }
     
+    /**
+     * Shows file offers and transfer progress. Callbacks arrive on network
+     * threads, so all UI work is handed to the event dispatch thread.
+     */
+    private class TransferListener implements FileTransferListener {
+        // Progress last handed to the event dispatch thread, so each percent is posted once
+        private long postedTransfer = -1;
+        private int postedPercent = -1;
+        
+        @Override
+        public void fileOffered(long id, String sender, String fileName, long size) {
+            SwingUtilities.invokeLater(() -> {
+                int choice = JOptionPane.showConfirmDialog(ChatClientGUI.this,
+                    sender + " wants to send you " + fileName + " (" + size + " bytes). Accept?",
+                    "File Offer", JOptionPane.YES_NO_OPTION);
+                if (choice != JOptionPane.YES_OPTION) {
+                    return;
+                }
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File(fileName));
+                if (chooser.showSaveDialog(ChatClientGUI.this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                try {
+                    chatClient.acceptFile(id, chooser.getSelectedFile());
+                } catch (IOException e) {
+                    handleError("Failed to accept file: " + e.getMessage());
+                }
+            });
+        }
+        
+        @Override
+        public void transferProgress(long id, long bytes, long total) {
+            int percent = total == 0 ? 100 : (int) (bytes * 100 / total);
+            synchronized (this) {
+                // Called for every chunk; most calls would repaint the same percentage
+                if (id == postedTransfer && percent == postedPercent) {
+                    return;
+                }
+                postedTransfer = id;
+                postedPercent = percent;
+            }
+            SwingUtilities.invokeLater(() -> {
+                transferProgressBar.setValue(percent);
+                transferProgressBar.setString("Transfer " + id + ": " + percent + "%");
+            });
+        }
+        
+        @Override
+        public void transferComplete(long id, File file) {
+            SwingUtilities.invokeLater(() -> {
+                transferProgressBar.setValue(100);
+                transferProgressBar.setString("Transfer " + id + " complete");
+            });
+            handleMessage("File transfer complete: " + file.getName());
+        }
+        
+        @Override
+        public void transferFailed(long id, String reason) {
+            SwingUtilities.invokeLater(() -> {
+                transferProgressBar.setValue(0);
+                transferProgressBar.setString("No file transfer");
+            });
+            handleError(reason);
+        }
+    }
+    
     /**
      * Main method to start the application
      */
@@ -0,0 +1,69 @@
+package client.clientGUI;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * ClientTls builds the SSLContext used for encrypted connections to the chat server.
+ *
+ * The context also owns the client-side TLS session cache. Reusing one context for
+ * every connection to the same server lets reconnects resume the previous session
+ * instead of performing a full handshake, which matters during reconnect storms.
+ */
+public final class ClientTls {
+    // Session cache settings - one entry per server endpoint is usually enough
+    private static final int SESSION_CACHE_SIZE = 1_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+    private ClientTls() {
+    }
+
+    /**
+     * Creates a context that trusts the certificates in the given trust store.
+     * A self-signed server key store can be used directly as the trust store.
+     *
+     * @param trustStorePath Path of a PKCS12 or JKS trust store, or null for the JDK defaults
+     * @param password Trust store password, may be null
+     * @return A TLS context with a configured session cache
+     * @throws IOException If the trust store cannot be read or the context cannot be built
+     */
+    public static SSLContext createContext(String trustStorePath, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trustManagers = null;
+            if (trustStorePath != null) {
+                KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                try (InputStream in = new FileInputStream(trustStorePath)) {
+                    trustStore.load(in, password);
+                }
+                trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(trustStore);
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers != null ? trustManagers.getTrustManagers() : null, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not initialise TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a context from the standard javax.net.ssl.trustStore and
+     * javax.net.ssl.trustStorePassword system properties
+     */
+    public static SSLContext createContextFromSystemProperties() throws IOException {
+        String password = System.getProperty("javax.net.ssl.trustStorePassword");
+        return createContext(System.getProperty("javax.net.ssl.trustStore"),
+            password != null ? password.toCharArray() : null);
+    }
+}
@@ -0,0 +1,51 @@
+package client.clientGUI;
+
+import java.io.File;
+
+/**
+ * FileTransferListener receives the progress of file transfers started through
+ * ChatClient. Callbacks arrive on the client's network or sender threads, so GUI
+ * code must hand them over to the event dispatch thread itself.
+ *
+ * Every method has an empty default so callers only implement what they show.
+ */
+public interface FileTransferListener {
+    /**
+     * Another user offered a file; call ChatClient.acceptFile() to receive it
+     *
+     * @param id Server-assigned transfer id
+     * @param sender Username of the client offering the file
+     * @param fileName Name of the file, without any path
+     * @param size File size in bytes
+     */
+    default void fileOffered(long id, String sender, String fileName, long size) {
+    }
+
+    /**
+     * Bytes of a transfer have been sent or received
+     *
+     * @param id Server-assigned transfer id
+     * @param bytes Bytes transferred so far
+     * @param total Size of the file
+     */
+    default void transferProgress(long id, long bytes, long total) {
+    }
+
+    /**
+     * A transfer finished; for incoming files the file is complete on disk
+     *
+     * @param id Server-assigned transfer id
+     * @param file The file that was sent or received
+     */
+    default void transferComplete(long id, File file) {
+    }
+
+    /**
+     * A transfer was cancelled or failed
+     *
+     * @param id Server-assigned transfer id, or 0 if the server refused the offer
+     * @param reason Human-readable explanation
+     */
+    default void transferFailed(long id, String reason) {
+    }
+}
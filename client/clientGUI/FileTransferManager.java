@@ -0,0 +1,357 @@
+package client.clientGUI;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileTransferManager implements the client side of the file transfer protocol.
+ *
+ * Sending: "/offer <token> <size> <name>" is answered with "/offer-ok <token> <id>".
+ * Nothing is sent until the server grants "/credit <id> <bytes>", which it does once
+ * somebody accepts and again after each relayed chunk. A sender thread streams the
+ * file as "/chunk <id> <length>" frames, each followed by its raw bytes, and finishes
+ * with "/file-end <id>". Credit keeps the amount of file data queued in the client,
+ * the server and the network bounded no matter how large the file is.
+ *
+ * Receiving: "/file-offer <id> <size> <sender> <name>" is reported to the listener,
+ * "/accept <id>" subscribes to the transfer, and chunks are written to disk as they
+ * arrive. Text arguments are URL-encoded so names with spaces survive the split.
+ */
+class FileTransferManager {
+    // Chunk size must not exceed the server's limit of one read buffer
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Writes a complete frame to the server
+     */
+    interface FrameWriter {
+        void write(byte[] frame) throws IOException;
+    }
+
+    private final FrameWriter writer;
+    private final AtomicLong nextToken = new AtomicLong();
+    private final Map<Long, Outgoing> offered = new ConcurrentHashMap<>();    // By token
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();   // By id
+    private final Map<Long, Offer> offers = new ConcurrentHashMap<>();        // Not yet accepted
+    private final Map<Long, Incoming> incoming = new ConcurrentHashMap<>();   // By id
+    private volatile FileTransferListener listener = new FileTransferListener() { };
+
+    FileTransferManager(FrameWriter writer) {
+        this.writer = writer;
+    }
+
+    void setListener(FileTransferListener listener) {
+        this.listener = listener != null ? listener : new FileTransferListener() { };
+    }
+
+    /**
+     * Offers a file to everyone in the chat
+     */
+    void offer(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Not a file: " + file);
+        }
+        long token = nextToken.incrementAndGet();
+        offered.put(token, new Outgoing(file));
+        writer.write(encode("/offer " + token + " " + file.length() + " " + urlEncode(file.getName())));
+    }
+
+    /**
+     * Accepts an offered file and starts receiving it into destination
+     */
+    void accept(long id, File destination) throws IOException {
+        Offer offer = offers.remove(id);
+        if (offer == null) {
+            throw new IOException("No file offer with id " + id);
+        }
+        FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        incoming.put(id, new Incoming(destination, channel, offer.size));
+        try {
+            writer.write(encode("/accept " + id));
+        } catch (IOException e) {
+            failIncoming(id, "could not reach server");
+            throw e;
+        }
+    }
+
+    /**
+     * Handles a line from the server if it belongs to a file transfer
+     *
+     * @param decoder Decoder the line came from, used to collect chunk payloads
+     * @return true if the line was consumed
+     * @throws IllegalStateException if a chunk's payload cannot be framed, after which
+     *         the connection has to be dropped
+     */
+    boolean handleLine(String line, FrameDecoder decoder) {
+        if (!line.startsWith("/")) {
+            return false;
+        }
+        String[] parts = line.split(" ");
+        try {
+            switch (parts[0]) {
+                case "/offer-ok":
+                    offerAccepted(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                    return true;
+                case "/offer-failed": {
+                    Outgoing transfer = offered.remove(Long.parseLong(parts[1]));
+                    if (transfer != null) {
+                        listener.transferFailed(0, "Server refused " + transfer.file.getName());
+                    }
+                    return true;
+                }
+                case "/file-offer": {
+                    long id = Long.parseLong(parts[1]);
+                    long size = Long.parseLong(parts[2]);
+                    String sender = urlDecode(parts[3]);
+                    String fileName = urlDecode(parts[4]);
+                    offers.put(id, new Offer(size));
+                    listener.fileOffered(id, sender, fileName, size);
+                    return true;
+                }
+                case "/credit": {
+                    Outgoing transfer = outgoing.get(Long.parseLong(parts[1]));
+                    if (transfer != null) {
+                        transfer.grant(Long.parseLong(parts[2]));
+                    }
+                    return true;
+                }
+                case "/chunk": {
+                    long id = Long.parseLong(parts[1]);
+                    int length = Integer.parseInt(parts[2]);
+                    if (length <= 0 || length > CHUNK_SIZE) {
+                        // The payload cannot be skipped, so the rest of the stream is lost too
+                        failIncoming(id, "server sent a chunk of " + length + " bytes");
+                        throw new IllegalStateException("Malformed chunk header: " + line);
+                    }
+                    // The payload must be consumed even if we no longer want it
+                    decoder.expectBinary(length, data -> receiveChunk(id, data));
+                    return true;
+                }
+                case "/file-end":
+                    finishIncoming(Long.parseLong(parts[1]));
+                    return true;
+                case "/file-cancel": {
+                    long id = Long.parseLong(parts[1]);
+                    offers.remove(id);
+                    Outgoing transfer = outgoing.remove(id);
+                    if (transfer != null) {
+                        transfer.cancel();
+                        listener.transferFailed(id, "Transfer of " + transfer.file.getName() + " was cancelled");
+                    }
+                    failIncoming(id, "cancelled by the sender");
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            // Not one of ours after all - show it as a normal message
+            return false;
+        }
+    }
+
+    /**
+     * Abandons every transfer, for example after the connection was lost
+     */
+    void cancelAll() {
+        offered.clear();
+        offers.clear();
+        for (Map.Entry<Long, Outgoing> entry : outgoing.entrySet()) {
+            entry.getValue().cancel();
+            listener.transferFailed(entry.getKey(), "Disconnected from server");
+        }
+        outgoing.clear();
+        for (Long id : incoming.keySet()) {
+            failIncoming(id, "disconnected from server");
+        }
+    }
+
+    private void offerAccepted(long token, long id) {
+        Outgoing transfer = offered.remove(token);
+        if (transfer == null) {
+            return;
+        }
+        outgoing.put(id, transfer);
+        Thread sender = new Thread(() -> stream(id, transfer), "file-sender-" + id);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Runs on a sender thread: streams the file as credit arrives
+     */
+    private void stream(long id, Outgoing transfer) {
+        long size = transfer.file.length();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream file = new FileInputStream(transfer.file)) {
+            long sent = 0;
+            while (sent < size) {
+                int length = (int) Math.min(CHUNK_SIZE, size - sent);
+                if (!transfer.await(length)) {
+                    return;  // Cancelled
+                }
+                int read = file.readNBytes(chunk, 0, length);
+                if (read != length) {
+                    throw new IOException("File changed while it was being sent");
+                }
+                byte[] header = encode("/chunk " + id + " " + length);
+                byte[] frame = new byte[header.length + length];
+                System.arraycopy(header, 0, frame, 0, header.length);
+                System.arraycopy(chunk, 0, frame, header.length, length);
+                writer.write(frame);
+                sent += length;
+                listener.transferProgress(id, sent, size);
+            }
+            writer.write(encode("/file-end " + id));
+            outgoing.remove(id);
+            listener.transferComplete(id, transfer.file);
+        } catch (IOException e) {
+            if (outgoing.remove(id) != null) {
+                listener.transferFailed(id, "Could not send " + transfer.file.getName() + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receiveChunk(long id, byte[] data) {
+        Incoming transfer = incoming.get(id);
+        if (transfer == null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                transfer.channel.write(buffer);
+            }
+            transfer.received += data.length;
+            listener.transferProgress(id, transfer.received, transfer.size);
+        } catch (IOException e) {
+            failIncoming(id, e.getMessage());
+        }
+    }
+
+    private void finishIncoming(long id) {
+        Incoming transfer = incoming.remove(id);
+        if (transfer == null) {
+            return;
+        }
+        closeQuietly(transfer.channel);
+        if (transfer.received == transfer.size) {
+            listener.transferComplete(id, transfer.file);
+        } else {
+            transfer.file.delete();
+            listener.transferFailed(id, "Received " + transfer.received + " of " + transfer.size + " bytes");
+        }
+    }
+
+    private void failIncoming(long id, String reason) {
+        Incoming transfer = incoming.remove(id);
+        if (transfer == null) {
+            return;
+        }
+        closeQuietly(transfer.channel);
+        transfer.file.delete();
+        listener.transferFailed(id, "Transfer of " + transfer.file.getName() + " failed: " + reason);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more we can do for this file
+        }
+    }
+
+    private static byte[] encode(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String urlEncode(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    private static String urlDecode(String text) {
+        return URLDecoder.decode(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A file this client is sending, with the credit the server has granted
+     */
+    private static class Outgoing {
+        private final File file;
+        private long credit;
+        private boolean cancelled;
+
+        Outgoing(File file) {
+            this.file = file;
+        }
+
+        synchronized void grant(long bytes) {
+            credit += bytes;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * Blocks until enough credit is available and consumes it
+         *
+         * @return false if the transfer was cancelled while waiting
+         */
+        synchronized boolean await(int bytes) throws InterruptedException {
+            while (credit < bytes && !cancelled) {
+                wait();
+            }
+            if (cancelled) {
+                return false;
+            }
+            credit -= bytes;
+            return true;
+        }
+    }
+
+    /**
+     * A file offered by someone else that we have not accepted yet
+     */
+    private static class Offer {
+        private final long size;
+
+        Offer(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file this client is receiving. Created by accept() and published through the
+     * incoming map; received is only read and updated by the thread reading from the
+     * server, while other threads only close the channel and delete the file.
+     */
+    private static class Incoming {
+        private final File file;
+        private final FileChannel channel;
+        private final long size;
+        private long received;
+
+        Incoming(File file, FileChannel channel, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package client.clientGUI;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * FrameDecoder turns a stream of raw bytes from the server into newline
+ * delimited messages. Bytes are pushed in as they arrive, so the same decoder
+ * works for both blocking streams and non-blocking channels.
+ *
+ * The decoder only holds memory while a message is partially received;
+ * idle sessions keep no buffer at all.
+ *
+ * Some frames carry a binary payload after their header line (for example
+ * compressed messages). The line handler announces such a payload by calling
+ * expectBinary() before it returns, and the decoder then collects exactly that
+ * many bytes before resuming line decoding.
+ */
+class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Consumer<String> lineHandler;  // Receives each complete line
+    private byte[] pending;                      // Bytes of an incomplete line, or null
+    private int pendingLength;                   // Number of valid bytes in pending
+    
+    // Binary payload being collected, if the last header line announced one
+    private byte[] binary;
+    private int binaryLength;
+    private Consumer<byte[]> binaryHandler;
+
+    /**
+     * @param lineHandler Callback invoked once for every complete line
+     */
+    FrameDecoder(Consumer<String> lineHandler) {
+        this.lineHandler = lineHandler;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer, emitting every complete line
+     */
+    void feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (binary != null) {
+                collectBinary(buffer);
+                continue;
+            }
+            int start = buffer.position();
+            int end = indexOfNewline(buffer, start, buffer.limit());
+            if (end < 0) {
+                // No line terminator yet - keep the fragment for the next read
+                append(buffer, start, buffer.limit());
+                buffer.position(buffer.limit());
+                return;
+            }
+            append(buffer, start, end);
+            buffer.position(end + 1);
+            emit();
+        }
+    }
+
+    /**
+     * Consumes bytes from an array, emitting every complete line
+     */
+    void feed(byte[] data, int offset, int length) {
+        feed(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Makes the decoder treat the next length bytes as one binary payload.
+     * Must be called from the line handler, on the thread feeding the decoder.
+     *
+     * @param length Number of payload bytes that follow the current line
+     * @param handler Receives the payload once it is complete
+     */
+    void expectBinary(int length, Consumer<byte[]> handler) {
+        if (length == 0) {
+            handler.accept(new byte[0]);
+            return;
+        }
+        binary = new byte[length];
+        binaryLength = 0;
+        binaryHandler = handler;
+    }
+
+    /**
+     * Releases any partially received line or payload
+     */
+    void reset() {
+        pending = null;
+        pendingLength = 0;
+        binary = null;
+        binaryHandler = null;
+    }
+
+    private void collectBinary(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), binary.length - binaryLength);
+        buffer.get(binary, binaryLength, count);
+        binaryLength += count;
+        if (binaryLength == binary.length) {
+            byte[] payload = binary;
+            Consumer<byte[]> handler = binaryHandler;
+            binary = null;
+            binaryHandler = null;
+            handler.accept(payload);
+        }
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(ByteBuffer buffer, int from, int to) {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        ensureCapacity(pendingLength + count);
+        for (int i = 0; i < count; i++) {
+            pending[pendingLength + i] = buffer.get(from + i);
+        }
+        pendingLength += count;
+    }
+
+    private void ensureCapacity(int required) {
+        if (pending == null) {
+            pending = new byte[Math.max(INITIAL_CAPACITY, required)];
+        } else if (pending.length < required) {
+            byte[] grown = new byte[Math.max(pending.length * 2, required)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+    }
+
+    private void emit() {
+        int length = pendingLength;
+        // Accept both "\n" and "\r\n" line endings
+        if (length > 0 && pending[length - 1] == '\r') {
+            length--;
+        }
+        String line = length == 0 ? "" : new String(pending, 0, length, StandardCharsets.UTF_8);
+        pending = null;
+        pendingLength = 0;
+        lineHandler.accept(line);
+    }
+}
@@ -0,0 +1,127 @@
+package client.clientGUI;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * MessageCompression compresses long outgoing messages and expands compressed
+ * messages from the server, once both sides have agreed on "/caps deflate".
+ *
+ * A compressed frame is a header line "/z <compressedLength> <originalLength>"
+ * followed by exactly that many bytes of raw deflate data. The deflater and
+ * inflater are created on first use and reused for every later message; both
+ * are primed with a preset dictionary, which the server takes from this class so
+ * the two sides always match byte for byte.
+ */
+public class MessageCompression {
+    // Messages shorter than this are sent as plain lines
+    static final int THRESHOLD = 256;
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    static final String CAPABILITY = "deflate";
+
+    private static final byte[] DICTIONARY = (
+        "Exception in thread \"main\" java.lang.NullPointerException "
+        + "java.lang.IllegalStateException java.lang.IllegalArgumentException "
+        + "java.io.IOException Caused by: ... more\n\tat java.base/java.lang.Thread.run(Thread.java:"
+        + "\tat java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:"
+        + "\tat sun.reflect.NativeMethodAccessorImpl.invoke(Native Method) .java:) "
+        + "ERROR WARN INFO DEBUG TRACE [main] Traceback (most recent call last): File \"line "
+        + "Error: failed timeout connection refused null undefined true false "
+        + "http:// https:// localhost 127.0.0.1 the and that with for this from "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] chunk = new byte[8 * 1024];
+
+    /**
+     * @return A copy of the preset dictionary, for the server's side of the protocol
+     */
+    public static byte[] dictionary() {
+        return DICTIONARY.clone();
+    }
+
+    /**
+     * Builds a complete compressed frame for a message
+     *
+     * @return The header line and compressed bytes, or null if the message is too
+     *         short or compressing it would not save anything
+     */
+    synchronized byte[] compressFrame(String message) {
+        byte[] original = message.getBytes(StandardCharsets.UTF_8);
+        if (original.length < THRESHOLD || original.length > MAX_MESSAGE_SIZE) {
+            return null;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(original);
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(original.length / 2);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            compressed.write(chunk, 0, count);
+        }
+        if (compressed.size() >= original.length) {
+            return null;
+        }
+
+        byte[] header = ("/z " + compressed.size() + " " + original.length + "\n")
+            .getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[header.length + compressed.size()];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        System.arraycopy(compressed.toByteArray(), 0, frame, header.length, compressed.size());
+        return frame;
+    }
+
+    /**
+     * Expands the payload of a compressed frame
+     *
+     * @throws DataFormatException If the data is corrupt or does not match the declared size
+     */
+    synchronized String decompress(byte[] data, int originalLength) throws DataFormatException {
+        if (originalLength < 0 || originalLength > MAX_MESSAGE_SIZE) {
+            throw new DataFormatException("Invalid message size " + originalLength);
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data);
+
+        byte[] original = new byte[originalLength];
+        int length = 0;
+        while (length < originalLength && !inflater.finished()) {
+            int count = inflater.inflate(original, length, originalLength - length);
+            if (count == 0 && inflater.needsInput()) {
+                break;
+            }
+            length += count;
+        }
+        if (length != originalLength) {
+            throw new DataFormatException("Compressed message is truncated");
+        }
+        return new String(original, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Frees the native memory held by the compressor contexts
+     */
+    synchronized void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package client.clientGUI;
+
+/**
+ * SearchResult is one message from the server's chat history that matched a search
+ */
+public final class SearchResult {
+    private final long sequence;     // Position of the message in the server's history
+    private final long timestamp;    // When the server relayed it, in epoch milliseconds
+    private final String sender;
+    private final String text;
+
+    SearchResult(long sequence, long timestamp, String sender, String text) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
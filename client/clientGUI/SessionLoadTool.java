@@ -0,0 +1,204 @@
+package client.clientGUI;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SessionLoadTool runs many ChatClient sessions in a single process over a shared
+ * ChannelTransport and checks that every session sends and receives its messages.
+ *
+ * By default the sessions talk to a small in-process echo server, so the tool measures
+ * the client transport alone. Pass a host and port to drive a real chat server instead;
+ * note that the chat server announces every join to every user, so large session counts
+ * against a real server mostly measure presence traffic.
+ *
+ * Usage: java client.clientGUI.SessionLoadTool [sessions] [selectorThreads] [host port]
+ * With the echo server the process needs about three file descriptors per session, so
+ * raise ulimit -n to match; if it runs out, the echo server stops and the run fails.
+ */
+public class SessionLoadTool {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        EchoServer echoServer = null;
+        String host;
+        int port;
+        if (args.length > 3) {
+            host = args[2];
+            port = Integer.parseInt(args[3]);
+        } else {
+            echoServer = new EchoServer();
+            echoServer.start();
+            host = "127.0.0.1";
+            port = echoServer.getPort();
+        }
+
+        LongAdder received = new LongAdder();
+        AtomicInteger errors = new AtomicInteger();
+        List<ChatClient> clients = new ArrayList<>(sessions);
+        int threadsBefore = Thread.activeCount();
+
+        try (ChannelTransport transport = new ChannelTransport(threads)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                ChatClient client = new ChatClient(
+                    message -> received.increment(),
+                    error -> errors.incrementAndGet(),
+                    connected -> { },
+                    transport);
+                try {
+                    client.connect(host, port, "load-" + i);
+                } catch (IOException e) {
+                    fail("session " + i + " could not connect: " + e.getMessage());
+                }
+                clients.add(client);
+            }
+            long connected = System.nanoTime();
+            System.out.printf("Connected %d sessions in %d ms using %d extra threads%n",
+                sessions, TimeUnit.NANOSECONDS.toMillis(connected - start),
+                Thread.activeCount() - threadsBefore);
+
+            for (ChatClient client : clients) {
+                client.sendMessage("hello from " + client.getUsername());
+            }
+
+            // Against the echo server every session gets its username and message back
+            long expected = 2L * sessions;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (received.sum() < expected && System.nanoTime() < deadline
+                    && (echoServer == null || echoServer.getFailure() == null)) {
+                Thread.sleep(10);
+            }
+            long done = System.nanoTime();
+            System.out.printf("Received %d of %d messages in %d ms, %d errors%n",
+                received.sum(), expected, TimeUnit.NANOSECONDS.toMillis(done - connected),
+                errors.get());
+
+            for (ChatClient client : clients) {
+                client.disconnect();
+            }
+        } finally {
+            if (echoServer != null) {
+                echoServer.shutdown();
+            }
+        }
+
+        if (echoServer != null && echoServer.getFailure() != null) {
+            fail("the echo server stopped: " + echoServer.getFailure());
+        }
+        if (echoServer != null && received.sum() < 2L * sessions) {
+            System.err.println("FAILED: not every session received its messages");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reports a run that could not complete, which is usually a lack of file descriptors
+     */
+    private static void fail(String reason) {
+        System.err.println("FAILED: " + reason
+            + " (about 3 file descriptors are needed per session, see ulimit -n)");
+        System.exit(1);
+    }
+
+    /**
+     * Minimal single-threaded server that echoes every byte back to its sender
+     */
+    private static class EchoServer extends Thread {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private volatile boolean isRunning = true;
+        private volatile String failure;             // Why the server stopped, or null
+
+        EchoServer() throws IOException {
+            super("echo-server");
+            setDaemon(true);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        int getPort() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        /**
+         * @return Why the server stopped before shutdown, or null while it is healthy
+         */
+        String getFailure() {
+            return failure;
+        }
+
+        void shutdown() throws IOException {
+            isRunning = false;
+            selector.wakeup();
+            serverChannel.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isAcceptable()) {
+                            SocketChannel channel;
+                            while ((channel = serverChannel.accept()) != null) {
+                                channel.configureBlocking(false);
+                                channel.register(selector, SelectionKey.OP_READ);
+                            }
+                        } else if (key.isReadable()) {
+                            echo(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    failure = e.getMessage();
+                    System.err.println("Echo server failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void echo(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+                buffer.flip();
+                // Echoed payloads are tiny, so a blocking-style spin is acceptable here
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already closing
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+
+/**
+ * AdminServer runs the chat server headless and lets admin consoles such as ServerGUI
+ * manage it over a separate socket bound to the loopback interface.
+ *
+ * The chat server never talks to a console directly. Its threads only drop log lines
+ * into a bounded queue and bump counters; a single publisher thread turns the state
+ * into a snapshot at most four times a second and queues it for every console. Each
+ * console has its own writer thread, and a console that falls too far behind is
+ * disconnected rather than slowing anything down, so any number of consoles can
+ * attach without affecting chat throughput.
+ *
+ * The protocol is line-based like the chat protocol, with names and text URL-encoded.
+ * Consoles send:
+ *   /start <port> [tls]   start the chat server
+ *   /stop                 stop it
+ *   /kick <name>          disconnect every client with that username
+ *   /quit                 detach the console; the chat server keeps running
+ * and receive snapshots made of:
+ *   /status running <port> <plain|tls> <startedAt> or /status stopped
+ *   /stats <clients> <messages relayed> <bytes relayed>
+ *   /clients <name (address)>...   only when the list changed since the last snapshot
+ *   /log <text>                    log events since the last snapshot
+ *   /log-dropped <count>           log events lost because the queue was full
+ *   /error <text>                  a command from this console failed
+ *   /end                           end of the snapshot
+ * Snapshots are only sent when something changed.
+ *
+ * Usage: java server.AdminServer [--admin-port n] [--port n] [--tls] [--start]
+ *                                 [--capture file] [--mailboxes dir] [--lean]
+ */
+public class AdminServer {
+    public static final int DEFAULT_ADMIN_PORT = 5001;
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 250;
+    private static final int LOG_QUEUE_CAPACITY = 4096;      // Log events buffered between snapshots
+    private static final int MAX_LOG_LINES_PER_SNAPSHOT = 200;
+    private static final int SESSION_QUEUE_CAPACITY = 64;    // Snapshots a console may fall behind by
+
+    private final int adminPort;
+    private ServerSocket adminSocket;
+    private final Set<AdminSession> sessions = new CopyOnWriteArraySet<>();
+    private final BlockingQueue<String> logQueue = new ArrayBlockingQueue<>(LOG_QUEUE_CAPACITY);
+    private final AtomicLong droppedLogs = new AtomicLong();
+    private final ScheduledExecutorService publisher;
+
+    private final Object lifecycle = new Object();  // Serializes start and stop
+    private volatile ChatServer server;             // Running chat server, or null
+    private String lastState;                       // Status and stats in the last snapshot
+
+    // Applied to every chat server started from here
+    private volatile boolean leanConnections;
+    private volatile File mailboxDirectory;         // Null for the chat server's default
+    private volatile File captureFile;              // Null to not record traffic
+
+    /**
+     * @param adminPort Loopback port that consoles connect to
+     */
+    public AdminServer(int adminPort) {
+        this.adminPort = adminPort;
+        this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admin-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts consoles until the admin socket is closed
+     */
+    public void serve() throws IOException {
+        adminSocket = new ServerSocket(adminPort, 50, InetAddress.getLoopbackAddress());
+        publisher.scheduleWithFixedDelay(this::publish, SNAPSHOT_INTERVAL_MILLIS,
+            SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Admin console listening on " + adminSocket.getLocalSocketAddress());
+        while (!adminSocket.isClosed()) {
+            try {
+                AdminSession session = new AdminSession(adminSocket.accept());
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!adminSocket.isClosed()) {
+                    System.err.println("Error accepting admin console: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a chat server, waiting until it listens or fails to
+     */
+    public void startServer(int port, boolean tls) throws IOException {
+        synchronized (lifecycle) {
+            if (server != null) {
+                throw new IOException("Server is already running on port " + server.getPort());
+            }
+            SSLContext sslContext = tls ? ServerTls.createContextFromSystemProperties() : null;
+            ChatServer candidate = new ChatServer(port, sslContext);
+            candidate.setLogListener(this::log);
+            candidate.setLeanConnections(leanConnections);
+            try {
+                if (mailboxDirectory != null) {
+                    candidate.setMailboxStore(new MailboxStore(mailboxDirectory));
+                }
+                if (captureFile != null) {
+                    candidate.setTrafficCapture(new TrafficCapture(captureFile));
+                }
+            } catch (IOException e) {
+                candidate.stop();
+                throw e;
+            }
+            Thread thread = new Thread(candidate::start, "chat-server");
+            thread.start();
+            try {
+                while (!candidate.isRunning() && thread.isAlive()) {
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!candidate.isRunning()) {
+                // Releases the history, mailbox and executor threads the candidate started
+                candidate.stop();
+                throw new IOException("Could not listen on port " + port);
+            }
+            server = candidate;
+        }
+    }
+
+    /**
+     * Makes chat servers started from now on keep each connection to a small memory
+     * budget. ChatServer.useLeanConnections() must have been called before any socket
+     * was opened.
+     */
+    public void setLeanConnections(boolean lean) {
+        this.leanConnections = lean;
+    }
+
+    /**
+     * @param directory Where chat servers started from now on keep offline direct
+     *                  messages, or null for the default
+     */
+    public void setMailboxDirectory(File directory) {
+        this.mailboxDirectory = directory;
+    }
+
+    /**
+     * @param file Where chat servers started from now on record their traffic, or null
+     *             to not record it. Each start overwrites the previous recording.
+     */
+    public void setCaptureFile(File file) {
+        this.captureFile = file;
+    }
+
+    /**
+     * Stops the chat server, if one is running
+     */
+    public void stopServer() {
+        synchronized (lifecycle) {
+            ChatServer running = server;
+            if (running != null) {
+                running.stop();
+                server = null;
+                log("Server stopped");
+            }
+        }
+    }
+
+    /**
+     * Stops the chat server and disconnects every console
+     */
+    public void close() {
+        stopServer();
+        publisher.shutdownNow();
+        try {
+            if (adminSocket != null) {
+                adminSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing admin socket: " + e.getMessage());
+        }
+        for (AdminSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Queues a log event for the next snapshot. Called on chat server threads, so it
+     * never blocks: when the queue is full the event is only counted.
+     */
+    private void log(String message) {
+        if (!logQueue.offer(message)) {
+            droppedLogs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Builds the snapshot shared by all consoles and hands it to each of them
+     */
+    private void publish() {
+        try {
+            ChatServer running = server;
+            StringBuilder state = new StringBuilder();
+            List<String> clients;
+            if (running != null) {
+                clients = running.getConnectedClients();
+                state.append("/status running ").append(running.getPort())
+                    .append(running.isTls() ? " tls " : " plain ").append(running.getStartedAt()).append('\n');
+                state.append("/stats ").append(clients.size()).append(' ')
+                    .append(running.getRelayedMessages()).append(' ')
+                    .append(running.getRelayedBytes()).append('\n');
+            } else {
+                clients = Collections.emptyList();
+                state.append("/status stopped\n");
+            }
+
+            StringBuilder events = new StringBuilder();
+            String line;
+            int lines = 0;
+            while (lines < MAX_LOG_LINES_PER_SNAPSHOT && (line = logQueue.poll()) != null) {
+                events.append("/log ").append(encode(line)).append('\n');
+                lines++;
+            }
+            long dropped = droppedLogs.getAndSet(0);
+            if (dropped > 0) {
+                events.append("/log-dropped ").append(dropped).append('\n');
+            }
+
+            StringBuilder clientLine = new StringBuilder("/clients");
+            for (String client : clients) {
+                clientLine.append(' ').append(encode(client));
+            }
+            clientLine.append('\n');
+
+            String stateText = state.toString();
+            boolean stateChanged = !stateText.equals(lastState);
+            lastState = stateText;
+            String clientText = clientLine.toString();
+            for (AdminSession session : sessions) {
+                session.publish(stateText, stateChanged, events, clientText);
+            }
+        } catch (RuntimeException e) {
+            // Never let one bad snapshot cancel the schedule
+            System.err.println("Error publishing admin snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a command from a console
+     */
+    private void execute(AdminSession session, String command) {
+        String[] parts = command.split(" ");
+        try {
+            switch (parts[0]) {
+                case "/start":
+                    startServer(Integer.parseInt(parts[1]), parts.length > 2 && parts[2].equals("tls"));
+                    break;
+                case "/stop":
+                    stopServer();
+                    break;
+                case "/kick": {
+                    ChatServer running = server;
+                    String name = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+                    if (running == null || running.kick(name) == 0) {
+                        session.sendError("No connected user named " + name);
+                    }
+                    break;
+                }
+                default:
+                    session.sendError("Unknown command " + parts[0]);
+            }
+        } catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            session.sendError(parts[0] + " failed: " + e.getMessage());
+        }
+    }
+
+    private static String encode(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One attached console: a reader thread for its commands and a writer thread
+     * that sends it the snapshots queued by the publisher
+     */
+    private class AdminSession {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(SESSION_QUEUE_CAPACITY);
+        private String lastClients;          // Client list last sent to this console
+        private boolean sentState;           // Whether this console has had a status yet
+
+        AdminSession(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            Thread reader = new Thread(this::readCommands, "admin-reader");
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::writeSnapshots, "admin-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Queues the parts of a snapshot this console has not seen yet.
+         * Only called on the publisher thread.
+         */
+        void publish(String state, boolean stateChanged, CharSequence events, String clients) {
+            StringBuilder snapshot = new StringBuilder();
+            if (stateChanged || !sentState) {
+                snapshot.append(state);
+                sentState = true;
+            }
+            if (!clients.equals(lastClients)) {
+                snapshot.append(clients);
+                lastClients = clients;
+            }
+            snapshot.append(events);
+            if (snapshot.length() > 0) {
+                enqueue(snapshot.append("/end\n"));
+            }
+        }
+
+        void sendError(String message) {
+            enqueue("/error " + encode(message) + "\n/end\n");
+        }
+
+        private void enqueue(CharSequence snapshot) {
+            if (!outbound.offer(snapshot.toString().getBytes(StandardCharsets.UTF_8))) {
+                // The console is not keeping up - it can reconnect for a fresh snapshot
+                System.err.println("Disconnecting admin console that fell behind: "
+                    + socket.getRemoteSocketAddress());
+                close();
+            }
+        }
+
+        private void readCommands() {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String command;
+                while ((command = in.readLine()) != null && !command.equals("/quit")) {
+                    execute(this, command);
+                }
+            } catch (IOException e) {
+                // Console went away
+            } finally {
+                close();
+            }
+        }
+
+        private void writeSnapshots() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (!socket.isClosed()) {
+                    byte[] snapshot = outbound.poll(1, TimeUnit.SECONDS);
+                    if (snapshot != null) {
+                        out.write(snapshot);
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Console went away
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Main method to run the headless server
+     * Options: --admin-port <n> for the console socket, --port <n> and --tls for the
+     * chat server, and --start to start the chat server right away. --capture <file>,
+     * --mailboxes <dir> and --lean apply to every chat server started, as they do for
+     * ChatServer itself.
+     */
+    public static void main(String[] args) throws IOException {
+        int adminPort = DEFAULT_ADMIN_PORT;
+        int port = 5000;
+        boolean tls = false;
+        boolean start = false;
+        String capturePath = null;
+        String mailboxPath = null;
+        boolean lean = Arrays.asList(args).contains("--lean");
+        if (lean) {
+            ChatServer.useLeanConnections();  // Before the admin socket opens
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--admin-port") && i + 1 < args.length) {
+                adminPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--tls")) {
+                tls = true;
+            } else if (args[i].equals("--start")) {
+                start = true;
+            } else if (args[i].equals("--capture") && i + 1 < args.length) {
+                capturePath = args[++i];
+            } else if (args[i].equals("--mailboxes") && i + 1 < args.length) {
+                mailboxPath = args[++i];
+            }
+        }
+        AdminServer admin = new AdminServer(adminPort);
+        admin.setLeanConnections(lean);
+        if (mailboxPath != null) {
+            admin.setMailboxDirectory(new File(mailboxPath));
+        }
+        if (capturePath != null) {
+            admin.setCaptureFile(new File(capturePath));
+            System.out.println("Capturing traffic to " + capturePath);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down server...");
+            admin.close();
+        }));
+        if (start) {
+            admin.startServer(port, tls);
+        }
+        admin.serve();
+    }
+}
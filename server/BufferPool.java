@@ -0,0 +1,72 @@
+package server;
+
+/**
+ * BufferPool lends fixed-size byte arrays to connection handlers so that the
+ * relay path can reuse the same memory for every message instead of allocating.
+ *
+ * The pool is a simple bounded stack guarded by a lock; acquiring and releasing
+ * a buffer never allocates once the pool is warm. If the pool runs dry a new
+ * buffer is created, and buffers released into a full pool are left to the GC.
+ */
+public class BufferPool {
+    private final int bufferSize;     // Size of every buffer handed out
+    private final byte[][] free;      // Stack of idle buffers
+    private int freeCount;            // Number of idle buffers on the stack
+    private long created;             // Buffers allocated over the pool's lifetime
+
+    /**
+     * @param bufferSize Size in bytes of each pooled buffer
+     * @param maxIdle Maximum number of idle buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.free = new byte[maxIdle][];
+    }
+
+    /**
+     * @return A buffer of exactly getBufferSize() bytes; its contents are undefined
+     */
+    public byte[] acquire() {
+        synchronized (this) {
+            if (freeCount > 0) {
+                byte[] buffer = free[--freeCount];
+                free[freeCount] = null;
+                return buffer;
+            }
+            created++;
+        }
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of the wrong size are ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        synchronized (this) {
+            if (freeCount < free.length) {
+                free[freeCount++] = buffer;
+            }
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return Number of buffers this pool has had to allocate
+     */
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * @return Number of buffers currently idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        return freeCount;
+    }
+}
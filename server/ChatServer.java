@@ -2,21 +2,143 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * ChatServer implements a multi-threaded chat server using TCP/IP connections.
  * It manages multiple client connections and broadcasts messages between clients.
  * This is the core server implementation without GUI components.
+ * Connections can optionally be encrypted with TLS.
+ *
+ * Chat messages are relayed as raw bytes: each handler scans its pooled read buffer
+ * for line boundaries and writes the sender's pre-encoded name prefix followed by
+ * the message bytes to every recipient, without ever decoding the message into a
+ * String. Only the username, server notices and protocol commands are handled as text.
+ *
+ * Clients may negotiate compression with "/caps deflate". A long message is then
+ * compressed once per broadcast and the same bytes are written to every recipient
+ * that negotiated it; other recipients get the plain line.
+ *
+ * Files are shared with "/offer", "/accept", "/chunk" and "/file-end" commands. Chunks
+ * are spooled to a temporary file and relayed to accepting clients straight from the
+ * spool; the sender only receives new "/credit" once a chunk has been relayed, which
+ * keeps transfers from flooding the connection and starving chat messages. A finished
+ * file can still be accepted for COMPLETED_TRANSFER_TTL_MILLIS, then its spool is deleted.
+ *
+ * Every chat message is also recorded in a searchable history. Clients query it with
+ * "/search [from:user] [after:date] [before:date] words", and receive the newest
+ * matches as "/search-result" lines followed by "/search-end".
+ *
+ * Joins and departures are announced in batches, so a network partition that drops many
+ * clients at once (or the reconnect storm after it) costs one presence update per client
+ * instead of one per change. stop() drains the server in bulk: one shutdown notice per
+ * client, flushed within a deadline, with the sockets closed in parallel and no
+ * per-client "left" broadcasts.
+ *
+ * Each connection's output is shared through OutboundLanes: server notices and protocol
+ * replies go ahead of chat lines and file chunks waiting to be written, so presence
+ * stays current during a flood, while chat still gets a turn after a bounded burst.
+ *
+ * "/msg <user> <text>" sends a direct message. If the user is not connected it is kept
+ * in their MailboxStore mailbox and delivered as one "/mailbox" burst when they next log in.
+ * Each connection may only leave a limited amount of mail for offline users.
+ *
+ * With a TrafficCapture attached, the shape of the traffic (joins, departures and the
+ * length of every relayed message) is recorded for TrafficReplay to play back later.
+ *
+ * Log events, statistics, the client list and kick() are exposed for AdminServer, which
+ * runs the server headless and serves them to admin consoles over a separate socket.
+ *
+ * With setLeanConnections(true) (--lean) each connection is kept to a small memory
+ * budget for hosts with very many mostly idle users. Read and write buffers are lent
+ * from the shared pool only while a frame is in flight, so an idle connection holds
+ * none, and handler threads are created with a LEAN_STACK_SIZE stack. An idle lean
+ * connection should then hold no more than LEAN_HEAP_BUDGET bytes of heap, provided the
+ * JDK does not keep a direct copy buffer per handler thread (see useLeanConnections()).
+ * ConnectionSoakTest checks the budget; see "Connection Memory" in the ReadMe.
  */
 public class ChatServer {
     // Server configuration
     private static final int PORT = 5000;        // Default server port
+    private final int port;                      // Port this server listens on
+    private final SSLContext sslContext;         // TLS context, or null for plaintext
     private ServerSocket serverSocket;           // Socket for accepting client connections
-    private boolean isRunning;                   // Server status flag
+    private volatile boolean isRunning;          // Server status flag
+    private volatile boolean shuttingDown;       // Bulk shutdown in progress
     private ExecutorService executorService;     // Thread pool for client handlers
     private Set<ClientHandler> clients;          // Collection of connected clients
+    private volatile ClientHandler[] recipients = new ClientHandler[0];  // Snapshot of clients for fan-out
+
+    // Relay buffers - one per connected client, or per frame in flight on lean connections
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    private final BufferPool bufferPool = new BufferPool(READ_BUFFER_SIZE, 1024);
+
+    // Lean connections - buffers lent only while data is in flight, small thread stacks
+    private static final long LEAN_STACK_SIZE = 256 * 1024;
+    public static final int LEAN_HEAP_BUDGET = 4 * 1024;          // Heap per idle lean connection
+    private volatile boolean leanConnections;
+    private volatile boolean presenceAnnounced = true;            // Off only for soak tests
+
+    // File transfers - chunks never exceed one pooled buffer
+    private static final int FILE_CHUNK_SIZE = READ_BUFFER_SIZE;
+    private static final int FILE_WINDOW = 8 * FILE_CHUNK_SIZE;   // Bytes a sender may have in flight
+    private static final long MAX_FILE_SIZE = 4L * 1024 * 1024 * 1024;
+    private static final long COMPLETED_TRANSFER_TTL_MILLIS = 10 * 60 * 1000;  // Served to late accepts
+    private final Map<Long, FileTransfer<ClientHandler>> transfers = new ConcurrentHashMap<>();
+    private final AtomicLong nextTransferId = new AtomicLong();
+    private final ScheduledExecutorService transferExpiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Searchable history of every relayed chat message
+    private final MessageIndex history = new MessageIndex();
+
+    // Presence and shutdown
+    private static final long PRESENCE_WINDOW_MILLIS = 200;       // Departures announced together
+    private static final long SHUTDOWN_DRAIN_MILLIS = 2000;       // Time allowed to flush notices
+    private static final int MAX_SHUTDOWN_THREADS = 32;
+    private static final byte[] SHUTDOWN_NOTICE =
+        "SERVER: The server is shutting down".getBytes(StandardCharsets.UTF_8);
+    private final PresenceBatcher presence =
+        new PresenceBatcher(PRESENCE_WINDOW_MILLIS, this::announcePresence);
+
+    // Admin hooks - read by AdminServer, never on the relay path except the counters
+    private volatile Consumer<String> logListener;                // Receives log events, or null
+    private final LongAdder relayedMessages = new LongAdder();
+    private final LongAdder relayedBytes = new LongAdder();
+    private volatile long startedAt;                              // When the server began listening
+    private final OutboundLanes.Stats laneStats = new OutboundLanes.Stats();  // Write waits per lane
+
+    // Direct messages for users who are offline, kept on disk
+    private static final String DEFAULT_MAILBOX_DIR = "mailboxes";
+    private static final long MAX_STORED_BYTES_PER_CONNECTION = 256 * 1024;  // Mail one connection may leave
+    private volatile MailboxStore mailboxes = new MailboxStore(new File(DEFAULT_MAILBOX_DIR));
+
+    // Optional traffic capture for TrafficReplay
+    private volatile TrafficCapture capture;                      // Records traffic shape, or null
+    private final AtomicInteger nextConnectionId = new AtomicInteger();
+
+    private static final byte[] QUIT_COMMAND = "/quit".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NAME_SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
 
     /**
      * Constructor initializes the server components
@@ -24,10 +146,30 @@ public class ChatServer {
      * synchronized HashSet for thread-safe client tracking
      */
     public ChatServer() {
+        this(PORT, null);
+    }
+
+    /**
+     * Creates a server on the given port
+     *
+     * @param port Port to listen on
+     * @param sslContext TLS context for encrypted connections, or null for plaintext
+     */
+    public ChatServer(int port, SSLContext sslContext) {
+        this.port = port;
+        this.sslContext = sslContext;
         // Create thread-safe set for client handlers
         this.clients = Collections.synchronizedSet(new HashSet<>());
         // Initialize thread pool that creates new threads as needed
-        this.executorService = Executors.newCachedThreadPool();
+        ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        AtomicInteger leanThreads = new AtomicInteger();
+        this.executorService = Executors.newCachedThreadPool(runnable -> {
+            if (!leanConnections) {
+                return defaultFactory.newThread(runnable);
+            }
+            return new Thread(null, runnable, "lean-client-handler-" + leanThreads.incrementAndGet(),
+                LEAN_STACK_SIZE);
+        });
     }
 
     /**
@@ -37,46 +179,312 @@ public class ChatServer {
     public void start() {
         try {
             // Create server socket to accept client connections
-            serverSocket = new ServerSocket(PORT);
+            if (sslContext != null) {
+                // The TLS handshake runs lazily on the client's handler thread
+                serverSocket = sslContext.getServerSocketFactory().createServerSocket(port);
+            } else {
+                // Channel-backed so file chunks can be sent with FileChannel.transferTo
+                serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+            }
+            startedAt = System.currentTimeMillis();
             isRunning = true;
-            System.out.println("Server started on port " + PORT);
+            log("Server started on port " + port + (sslContext != null ? " (TLS)" : ""));
 
             // Main server loop - continuously accept new clients
             while (isRunning) {
                 try {
                     // Accept new client connection
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + 
-                        clientSocket.getInetAddress().getHostAddress());
+                    log("New client connected: " + clientSocket.getInetAddress().getHostAddress());
                     
                     // Create and start a new client handler
                     ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    clients.add(clientHandler);
+                    addClient(clientHandler);
                     executorService.execute(clientHandler);
                 } catch (IOException e) {
                     // Only log error if server is still meant to be running
                     if (isRunning) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        logError("Error accepting client connection: " + e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Could not listen on port " + PORT);
+            logError("Could not listen on port " + port + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Deletes a completed transfer's spool once late accepts are no longer served.
+     * Every recipient so far has its "/file-end"; a later accept is told the file is gone.
+     */
+    private void expireTransfer(FileTransfer<ClientHandler> transfer) {
+        if (transfers.remove(transfer.getId(), transfer)) {
+            transfer.discard();
+        }
+    }
+
+    /**
+     * Registers a client and refreshes the fan-out snapshot.
+     * The snapshot is an array so relaying a message allocates no iterator.
+     */
+    private void addClient(ClientHandler client) {
+        synchronized (clients) {
+            clients.add(client);
+            recipients = clients.toArray(new ClientHandler[0]);
+        }
+    }
+
+    /**
+     * Unregisters a client. The fan-out snapshot is refreshed when the departure is
+     * announced, so a burst of departures rebuilds it once instead of once per client;
+     * until then the closed handler simply ignores anything sent to it.
+     */
+    private void removeClient(ClientHandler client) {
+        clients.remove(client);
+    }
+
+    private void refreshRecipients() {
+        synchronized (clients) {
+            recipients = clients.toArray(new ClientHandler[0]);
+        }
+    }
+
+    /**
+     * Announces a batch of joins and departures with a single write to each client:
+     * who joined, who left and, if anyone joined, the list of connected users
+     */
+    private void announcePresence(List<String> joined, List<String> left) {
+        if (!presenceAnnounced) {
+            return;
+        }
+        refreshRecipients();
+        StringJoiner update = new StringJoiner("\n");
+        if (!joined.isEmpty()) {
+            update.add(PresenceBatcher.describe(joined, "joined"));
+        }
+        if (!left.isEmpty()) {
+            update.add(PresenceBatcher.describe(left, "left"));
+        }
+        if (!joined.isEmpty()) {
+            StringBuilder userList = new StringBuilder("Connected users: ");
+            for (ClientHandler client : recipients) {
+                if (client.clientName != null) {
+                    userList.append(client.clientName).append(", ");
+                }
+            }
+            update.add(userList);
+        }
+        String text = update.toString();
+        log(text);
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        for (ClientHandler client : recipients) {
+            client.sendFrame(OutboundLanes.CONTROL, null, encoded, 0, encoded.length);
+        }
+    }
+
+    /**
+     * Sets the callback that receives every log line in addition to the console.
+     * It is called on server and client handler threads, so it must not block.
+     */
+    public void setLogListener(Consumer<String> listener) {
+        this.logListener = listener;
+    }
+
+    private void log(String message) {
+        System.out.println(message);
+        Consumer<String> listener = logListener;
+        if (listener != null) {
+            listener.accept(message);
+        }
+    }
+
+    private void logError(String message) {
+        System.err.println(message);
+        Consumer<String> listener = logListener;
+        if (listener != null) {
+            listener.accept(message);
+        }
+    }
+
+    /**
+     * @return "name (address)" for every client that has sent its username
+     */
+    public List<String> getConnectedClients() {
+        List<String> result = new ArrayList<>();
+        for (ClientHandler client : recipients) {
+            String name = client.clientName;
+            if (name != null && !client.closed) {
+                result.add(name + " (" + client.clientSocket.getInetAddress().getHostAddress() + ")");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Disconnects every client with the given username after telling them why
+     *
+     * @return Number of clients disconnected
+     */
+    public int kick(String name) {
+        int kicked = 0;
+        for (ClientHandler client : recipients) {
+            if (name.equals(client.clientName) && !client.closed) {
+                client.sendMessage("SERVER: You have been removed from the chat");
+                client.closeSocket();  // The handler's own thread announces the departure
+                kicked++;
+            }
+        }
+        if (kicked > 0) {
+            log("Kicked " + name);
+        }
+        return kicked;
+    }
+
+    /**
+     * @return Number of chat messages relayed since the server started
+     */
+    public long getRelayedMessages() {
+        return relayedMessages.sum();
+    }
+
+    /**
+     * @return Bytes of chat message payload relayed since the server started
+     */
+    public long getRelayedBytes() {
+        return relayedBytes.sum();
+    }
+
+    /**
+     * @return When the server began listening, in epoch milliseconds
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Keeps each connection to a small memory budget: no buffers while idle and a
+     * reduced thread stack. Applies to connections accepted from now on, and costs a
+     * pool hand-off per frame read and per frame written.
+     */
+    public void setLeanConnections(boolean lean) {
+        this.leanConnections = lean;
+    }
+
+    /**
+     * Turns join and departure notices on or off. Every join sends the whole user list
+     * to every client, which a soak test with tens of thousands of connections cannot
+     * afford and does not mean to measure; a real chat should leave them on.
+     */
+    public void setPresenceAnnounced(boolean announced) {
+        this.presenceAnnounced = announced;
+    }
+
+    /**
+     * Prepares the JVM for lean connections. Socket reads and writes through heap arrays
+     * are copied via a direct buffer that the JDK caches per thread, which would leave
+     * every handler thread holding one the size of its largest read. Must be called
+     * before the first socket I/O in the process; the same can be done by starting the
+     * JVM with -Djdk.nio.maxCachedBufferSize=0.
+     */
+    public static void useLeanConnections() {
+        if (System.getProperty("jdk.nio.maxCachedBufferSize") == null) {
+            System.setProperty("jdk.nio.maxCachedBufferSize", "0");
+        }
+    }
+
+    /**
+     * @return Number of connections, including clients that have not sent a username yet
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Replaces the store that keeps direct messages for offline users
+     */
+    public void setMailboxStore(MailboxStore store) {
+        MailboxStore previous = mailboxes;
+        mailboxes = store;
+        previous.close();
+    }
+
+    /**
+     * Records the shape of the traffic from now on. The capture is closed by stop().
+     *
+     * @param capture Where to record traffic, or null to stop recording
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * @return How long writers have waited for each outbound lane, over all connections
+     */
+    public OutboundLanes.Stats getLaneStats() {
+        return laneStats;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isTls() {
+        return sslContext != null;
+    }
+
+    /**
+     * @return true while the server is accepting connections
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
     /**
      * Stops the server and performs cleanup
      * Closes all client connections and shuts down the thread pool
      */
     public void stop() {
+        stop(SHUTDOWN_DRAIN_MILLIS);
+    }
+
+    /**
+     * Shuts the server down in bulk. Every client gets one shutdown notice and the
+     * sockets are closed in parallel; clients whose notice has not been flushed when
+     * the deadline passes are disconnected without it.
+     *
+     * @param drainMillis How long to wait for shutdown notices to be written
+     */
+    public void stop(long drainMillis) {
         isRunning = false;
+        shuttingDown = true;
+        presence.close();
         try {
-            // Close all client connections
-            for (ClientHandler client : clients) {
-                client.close();
+            // Stop accepting first so no client joins while we drain
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+
+            ClientHandler[] handlers;
+            synchronized (clients) {
+                handlers = clients.toArray(new ClientHandler[0]);
+                clients.clear();
+                recipients = new ClientHandler[0];
             }
-            clients.clear();
+            drainClients(handlers, drainMillis);
+
+            TrafficCapture trace = capture;
+            if (trace != null) {
+                capture = null;
+                trace.close();
+            }
+
+            for (FileTransfer<ClientHandler> transfer : transfers.values()) {
+                transfer.discard();
+            }
+            transfers.clear();
+            transferExpiry.shutdownNow();
+            history.close();
+            mailboxes.close();
             
             // Shutdown the executor service
             executorService.shutdown();
@@ -84,13 +492,30 @@ public class ChatServer {
             if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
                 executorService.shutdownNow();
             }
-            
-            // Close the server socket
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
         } catch (IOException | InterruptedException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            logError("Error stopping server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the shutdown notice to every client and closes them, in parallel
+     */
+    private void drainClients(ClientHandler[] handlers, long drainMillis) throws InterruptedException {
+        if (handlers.length == 0) {
+            return;
+        }
+        ExecutorService closers = Executors.newFixedThreadPool(
+            Math.min(handlers.length, MAX_SHUTDOWN_THREADS));
+        for (ClientHandler client : handlers) {
+            closers.execute(client::drain);
+        }
+        closers.shutdown();
+        if (!closers.awaitTermination(drainMillis, TimeUnit.MILLISECONDS)) {
+            // Stragglers are stuck writing to slow clients - closing the socket unblocks them
+            closers.shutdownNow();
+            for (ClientHandler client : handlers) {
+                client.closeSocket();
+            }
         }
     }
 
@@ -101,9 +526,32 @@ public class ChatServer {
      */
     private class ClientHandler implements Runnable {
         private Socket clientSocket;         // Client's socket connection
-        private PrintWriter out;             // Output stream to client
-        private BufferedReader in;           // Input stream from client
-        private String clientName;           // Client's username
+        private volatile OutputStream out;   // Buffered output stream to client
+        private InputStream in;              // Raw input stream from client
+        private volatile String clientName;  // Client's username
+        private byte[] namePrefix;           // Pre-encoded "name: " prepended to relayed messages
+        private volatile boolean closed;     // Guards against closing twice
+        private volatile boolean acceptsDeflate;  // Negotiated via "/caps deflate"
+        private byte[] compressedInput;      // Scratch space for inbound compressed frames
+        private final List<ClientHandler> chunkRecipients = new ArrayList<>();  // Reused per chunk
+        private final Map<Long, Long> delivered = new ConcurrentHashMap<>();    // File bytes written, by transfer; under lanes
+        private final OutboundLanes lanes = new OutboundLanes(laneStats);      // Write turns, control first
+        private final int connectionId = nextConnectionId.incrementAndGet();  // Identifies us in captures
+        private long connectedAt;            // When the username arrived, for the disconnect event
+        private long storedBytes;            // Direct message text this connection left in mailboxes
+        private final boolean lean = leanConnections;  // Buffers lent per frame, see setLeanConnections
+
+        // Sampled flight recorder tracing of relayed messages, see RelayTracing
+        private int untilSample = RelayTracing.SAMPLE_EVERY;  // Frames left before the next sample
+        private boolean tracing;             // A recording wanted relay events at the last sample
+        private long lastReadAt;             // When the last socket read returned, while tracing
+        private long traceStart;             // When the sampled frame was found complete
+        private RelayTracing.MessageRelay sampledRelay;  // Event for the frame being relayed, if sampled
+
+        // Inbound frame buffer, borrowed from the pool for the life of the connection
+        private byte[] readBuffer;
+        private int frameStart;              // Start of the first unprocessed byte
+        private int readEnd;                 // End of valid data in readBuffer
 
         /**
          * Constructor takes the client's socket connection
@@ -121,10 +569,13 @@ public class ChatServer {
             try {
                 setupStreams();
                 processClientMessages();
+            } catch (ClosedChannelException e) {
+                // Socket was closed by another thread, e.g. by stop() - not an error
             } catch (IOException e) {
-                System.err.println("Error in client handler: " + e.getMessage());
+                logError("Error in client handler: " + e.getMessage());
             } finally {
                 close();
+                releaseBuffer();
             }
         }
 
@@ -133,88 +584,979 @@ public class ChatServer {
          * First message from client is expected to be their username
          */
         private void setupStreams() throws IOException {
+            RelayTracing.ClientConnected event = new RelayTracing.ClientConnected();
+            event.begin();
             // Initialize input/output streams
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            if (!lean) {
+                readBuffer = bufferPool.acquire();  // Lean connections borrow it once data arrives
+            }
+            in = clientSocket.getInputStream();
+            out = lean ? new PooledOutputStream(clientSocket.getOutputStream(), bufferPool)
+                : new BufferedOutputStream(clientSocket.getOutputStream(), WRITE_BUFFER_SIZE);
             
             // First message is client's username
-            clientName = in.readLine();
-            broadcastMessage("SERVER: " + clientName + " has joined the chat");
-            sendClientList();
+            int end = nextFrame();
+            if (end < 0) {
+                throw new EOFException("Client disconnected before sending a username");
+            }
+            clientName = new String(readBuffer, frameStart, frameLength(end), StandardCharsets.UTF_8);
+            frameStart = end + 1;
+            namePrefix = concat(clientName.getBytes(StandardCharsets.UTF_8), NAME_SEPARATOR);
+            presence.joined(clientName);
+            TrafficCapture trace = capture;
+            if (trace != null) {
+                trace.connected(connectionId);
+            }
+            connectedAt = System.currentTimeMillis();
+            if (event.shouldCommit()) {
+                event.user = clientName;
+                event.address = clientSocket.getInetAddress().getHostAddress();
+                event.tls = clientSocket instanceof SSLSocket;
+                event.commit();
+            }
+            deliverMailbox();
         }
 
         /**
          * Main message processing loop
-         * Continuously reads and broadcasts client messages
+         * Relays each complete line straight from the read buffer to every recipient
          */
         private void processClientMessages() throws IOException {
-            String message;
+            int end;
             // Read messages until client disconnects
-            while ((message = in.readLine()) != null) {
-                if (message.equals("/quit")) {
-                    break;
+            while ((end = nextFrame()) >= 0) {
+                if (--untilSample == 0) {
+                    sampleFrame();
                 }
-                broadcastMessage(clientName + ": " + message);
+                int length = frameLength(end);
+                if (length > 0 && readBuffer[frameStart] == '/') {
+                    if (isCommand(QUIT_COMMAND, length)) {
+                        break;
+                    }
+                    if (handleCommand(length, end)) {
+                        sampledRelay = null;  // Not a chat message, or relayed already
+                        continue;
+                    }
+                }
+                broadcastFrame(readBuffer, frameStart, length);
+                frameStart = end + 1;
             }
         }
 
         /**
-         * Broadcasts a message to all connected clients except the sender
+         * Decides whether the frame just found is traced. Whether a recording wants relay
+         * events is only checked here, so between samples tracing costs a counter.
          */
-        private void broadcastMessage(String message) {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client != this) {  // Don't send message back to sender
-                        client.sendMessage(message);
+        private void sampleFrame() {
+            untilSample = RelayTracing.SAMPLE_EVERY;
+            tracing = RelayTracing.relayEnabled();
+            if (!tracing) {
+                lastReadAt = 0;
+                return;
+            }
+            traceStart = System.nanoTime();
+            sampledRelay = new RelayTracing.MessageRelay();
+            sampledRelay.begin();
+            // The read time is only kept while tracing, so it may not be known yet
+            sampledRelay.bufferedNanos = lastReadAt != 0 ? traceStart - lastReadAt : 0;
+        }
+
+        /**
+         * Handles protocol commands. Anything that is not a known command is
+         * left in place and relayed as an ordinary chat message.
+         *
+         * @return true if the frame was a command and has been consumed
+         */
+        private boolean handleCommand(int length, int end) throws IOException {
+            String command = new String(readBuffer, frameStart, length, StandardCharsets.UTF_8);
+            if (command.startsWith("/caps ")) {
+                frameStart = end + 1;
+                acceptsDeflate = command.substring(6).contains(MessageCompression.CAPABILITY);
+                sendMessage("/caps " + (acceptsDeflate ? MessageCompression.CAPABILITY : ""));
+                TrafficCapture trace = capture;
+                if (trace != null && acceptsDeflate) {
+                    trace.deflateAgreed(connectionId);
+                }
+                return true;
+            }
+            if (command.startsWith("/z ")) {
+                frameStart = end + 1;
+                relayCompressed(command);
+                return true;
+            }
+            if (command.startsWith("/search ")) {
+                frameStart = end + 1;
+                search(command.substring(8));
+                return true;
+            }
+            if (command.startsWith("/msg ")) {
+                // Always consumed - a malformed private message must never be relayed as chat
+                frameStart = end + 1;
+                directMessage(command.split(" ", 3));
+                return true;
+            }
+            return handleFileCommand(command.split(" "), end);
+        }
+
+        /**
+         * Handles the file transfer commands. A command with missing or non-numeric
+         * arguments is not consumed, so it is relayed as chat like any unknown command.
+         */
+        private boolean handleFileCommand(String[] parts, int end) throws IOException {
+            try {
+                switch (parts[0]) {
+                    case "/offer": {
+                        long size = Long.parseLong(parts[2]);
+                        String fileName = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+                        frameStart = end + 1;
+                        offerFile(parts[1], size, fileName);
+                        return true;
+                    }
+                    case "/accept": {
+                        long id = Long.parseLong(parts[1]);
+                        frameStart = end + 1;
+                        acceptFile(id);
+                        return true;
+                    }
+                    case "/chunk": {
+                        long id = Long.parseLong(parts[1]);
+                        int chunkLength = Integer.parseInt(parts[2]);
+                        frameStart = end + 1;
+                        relayChunk(id, chunkLength);
+                        return true;
                     }
+                    case "/file-end": {
+                        long id = Long.parseLong(parts[1]);
+                        frameStart = end + 1;
+                        endFile(id);
+                        return true;
+                    }
+                    default:
+                        return false;
                 }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                return false;
             }
         }
 
         /**
-         * Sends the list of connected users to all clients
+         * Answers a history search. Words must all appear in a message; "from:",
+         * "after:" and "before:" narrow the results by sender and time, where times
+         * are ISO dates or date-times in the server's time zone.
          */
-        private void sendClientList() {
-            StringBuilder userList = new StringBuilder("Connected users: ");
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    userList.append(client.clientName).append(", ");
+        private void search(String query) {
+            StringBuilder words = new StringBuilder();
+            String sender = null;
+            long from = Long.MIN_VALUE;
+            long until = Long.MAX_VALUE;
+            try {
+                for (String part : query.trim().split("\\s+")) {
+                    if (part.startsWith("from:")) {
+                        sender = part.substring(5);
+                    } else if (part.startsWith("after:")) {
+                        from = parseTime(part.substring(6));
+                    } else if (part.startsWith("before:")) {
+                        until = parseTime(part.substring(7));
+                    } else {
+                        words.append(part).append(' ');
+                    }
+                }
+            } catch (DateTimeParseException e) {
+                sendMessage("/search-error " + URLEncoder.encode(
+                    "Invalid date " + e.getParsedString() + ", use yyyy-MM-dd or yyyy-MM-ddTHH:mm",
+                    StandardCharsets.UTF_8));
+                return;
+            }
+
+            MessageIndex.SearchResults results =
+                history.search(words.toString(), sender, from, until, MessageIndex.MAX_RESULTS);
+            for (MessageIndex.Hit hit : results.hits) {
+                sendMessage("/search-result " + hit.seq + " " + hit.timestamp + " "
+                    + URLEncoder.encode(hit.sender, StandardCharsets.UTF_8) + " "
+                    + URLEncoder.encode(hit.text, StandardCharsets.UTF_8));
+            }
+            sendMessage("/search-end " + results.hits.size() + " " + results.total);
+        }
+
+        /**
+         * Delivers a direct message to every connection of the recipient, or stores it
+         * in their mailbox when they are offline, and tells the sender which happened
+         */
+        private void directMessage(String[] parts) {
+            if (parts.length < 3) {
+                sendMessage("/dm-failed - " + URLEncoder.encode("Usage: /msg user text", StandardCharsets.UTF_8));
+                return;
+            }
+            String recipient;
+            String text;
+            try {
+                recipient = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+                text = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                sendMessage("/dm-failed " + parts[1] + " " + URLEncoder.encode("Malformed message", StandardCharsets.UTF_8));
+                return;
+            }
+            long timestamp = System.currentTimeMillis();
+            if (sendDirect(recipient, directLine(timestamp, clientName, text)) > 0) {
+                sendMessage("/dm-sent " + parts[1] + " delivered");
+                return;
+            }
+
+            // Without a limit per connection one client could fill the store with mail
+            // for made-up names
+            long size = text.getBytes(StandardCharsets.UTF_8).length;
+            if (storedBytes + size > MAX_STORED_BYTES_PER_CONNECTION) {
+                String reason = "You have left too many messages for offline users";
+                sendMessage("/dm-failed " + parts[1] + " " + URLEncoder.encode(reason, StandardCharsets.UTF_8));
+                return;
+            }
+            MailboxStore.Result result = mailboxes.store(recipient, clientName, text);
+            if (result != MailboxStore.Result.STORED) {
+                String reason = result == MailboxStore.Result.MAILBOX_FULL ? recipient + "'s mailbox is full"
+                    : result == MailboxStore.Result.STORE_FULL ? "The server's mailbox storage is full"
+                    : "The message could not be stored";
+                sendMessage("/dm-failed " + parts[1] + " " + URLEncoder.encode(reason, StandardCharsets.UTF_8));
+                return;
+            }
+            storedBytes += size;
+            // The recipient may have logged in while we stored it; their login delivery
+            // and this one both take from the mailbox, so the message arrives once
+            for (ClientHandler client : recipients) {
+                if (recipient.equals(client.clientName) && !client.closed) {
+                    client.deliverMailbox();
+                }
+            }
+            sendMessage("/dm-sent " + parts[1] + " stored");
+        }
+
+        /**
+         * Sends any direct messages that arrived while this user was offline, as one burst
+         */
+        void deliverMailbox() {
+            List<MailboxStore.Message> waiting = mailboxes.takeAll(clientName);
+            if (waiting.isEmpty()) {
+                return;
+            }
+            StringBuilder burst = new StringBuilder("/mailbox ").append(waiting.size());
+            for (MailboxStore.Message message : waiting) {
+                burst.append('\n').append(directLine(message.timestamp, message.sender, message.text));
+            }
+            byte[] encoded = burst.toString().getBytes(StandardCharsets.UTF_8);
+            if (!sendFrame(OutboundLanes.BULK, null, encoded, 0, encoded.length)) {
+                // The messages are no longer on disk, so keep them for the next login
+                mailboxes.restore(clientName, waiting);
+            }
+        }
+
+        private long parseTime(String text) {
+            LocalDateTime time = text.contains("T")
+                ? LocalDateTime.parse(text)
+                : LocalDate.parse(text).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        /**
+         * Registers a file offer and announces it to everyone else
+         */
+        private void offerFile(String token, long size, String fileName) throws IOException {
+            // Never trust a path from the client - keep only the final name
+            String name = new File(fileName).getName();
+            if (size < 0 || size > MAX_FILE_SIZE || name.isEmpty()) {
+                sendMessage("/offer-failed " + token);
+                return;
+            }
+            long id = nextTransferId.incrementAndGet();
+            transfers.put(id, new FileTransfer<>(id, this, size, name));
+            sendMessage("/offer-ok " + token + " " + id);
+            broadcastMessage("/file-offer " + id + " " + size + " "
+                + URLEncoder.encode(clientName, StandardCharsets.UTF_8) + " "
+                + URLEncoder.encode(name, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Subscribes this client to a transfer, catching it up from the spool first
+         */
+        private void acceptFile(long id) {
+            FileTransfer<ClientHandler> transfer = transfers.get(id);
+            if (transfer == null || transfer.getSender() == this) {
+                sendMessage("/file-cancel " + id);
+                return;
+            }
+            if (delivered.putIfAbsent(id, 0L) != null) {
+                return;  // Already accepted
+            }
+            transfer.addRecipient(this);
+            if (transfer.startStreaming()) {
+                transfer.getSender().sendMessage("/credit " + id + " " + FILE_WINDOW);
+            }
+            catchUp(transfer);
+        }
+
+        /**
+         * Sends this client the part of a file spooled before it accepted, one chunk per
+         * turn on the bulk lane so that chat to this client keeps flowing meanwhile. Live
+         * chunks are skipped by sendChunk() until the catch-up has reached them, and the
+         * catch-up ends the file itself if the sender finished first.
+         */
+        private void catchUp(FileTransfer<ClientHandler> transfer) {
+            long id = transfer.getId();
+            byte[] chunk = bufferPool.acquire();
+            try {
+                while (lanes.acquire(OutboundLanes.BULK)) {
+                    try {
+                        Long next = delivered.get(id);
+                        if (next == null) {
+                            return;  // Cancelled meanwhile
+                        }
+                        boolean complete = transfer.isComplete();
+                        long available = transfer.getReceived();
+                        if (next >= available) {
+                            if (complete) {
+                                delivered.remove(id);
+                                sendMessage("/file-end " + id);
+                            }
+                            return;
+                        }
+                        int length = (int) Math.min(FILE_CHUNK_SIZE, available - next);
+                        // Read before the header goes out, so a discarded spool cannot leave
+                        // the client waiting for a payload that never comes
+                        if (transfer.read(next, chunk, length) != length) {
+                            throw new IOException("Spool of transfer " + id + " ended early");
+                        }
+                        OutputStream stream = out;
+                        if (stream == null) {
+                            return;
+                        }
+                        writeChunkHeader(stream, id, length);
+                        stream.write(chunk, 0, length);
+                        stream.flush();
+                        delivered.put(id, next + length);
+                    } catch (IOException e) {
+                        delivered.remove(id);
+                        if (transfer.isOpen()) {
+                            logError("Error sending file to " + clientName + ": " + e.getMessage());
+                            closeSocket();
+                        } else {
+                            sendMessage("/file-cancel " + id);
+                        }
+                        return;
+                    } finally {
+                        lanes.release();
+                    }
+                    if (!lanes.yieldTurn()) {
+                        return;
+                    }
+                }
+            } finally {
+                bufferPool.release(chunk);
+            }
+        }
+
+        /**
+         * Spools one chunk from this client and relays it to every recipient
+         */
+        private void relayChunk(long id, int length) throws IOException {
+            if (length <= 0 || length > FILE_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk size " + length);
+            }
+            byte[] chunk = bufferPool.acquire();
+            try {
+                // Always consume the payload so the stream stays in sync
+                readExact(chunk, length);
+                FileTransfer<ClientHandler> transfer = transfers.get(id);
+                if (transfer == null || transfer.getSender() != this) {
+                    return;  // Cancelled or not ours
+                }
+                long position;
+                try {
+                    position = transfer.append(chunk, length, chunkRecipients);
+                } catch (IOException e) {
+                    cancelTransfer(transfer);
+                    return;
+                }
+                for (ClientHandler client : chunkRecipients) {
+                    client.sendChunk(transfer, position, chunk, length);
+                }
+                chunkRecipients.clear();
+                // Replenish the sender's window only once the chunk is on its way
+                sendMessage("/credit " + id + " " + length);
+            } finally {
+                bufferPool.release(chunk);
+            }
+        }
+
+        /**
+         * Handles the sender's end marker
+         */
+        private void endFile(long id) {
+            FileTransfer<ClientHandler> transfer = transfers.get(id);
+            if (transfer == null || transfer.getSender() != this) {
+                return;
+            }
+            try {
+                for (ClientHandler client : transfer.markComplete()) {
+                    client.endDelivery(id, transfer.getSize());
+                }
+            } catch (IOException e) {
+                cancelTransfer(transfer);
+                return;
+            }
+            try {
+                transferExpiry.schedule(() -> expireTransfer(transfer), COMPLETED_TRANSFER_TTL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The server is stopping, which discards every transfer anyway
+            }
+        }
+
+        /**
+         * Abandons a transfer and tells its recipients
+         */
+        private void cancelTransfer(FileTransfer<ClientHandler> transfer) {
+            transfers.remove(transfer.getId());
+            for (ClientHandler client : transfer.recipientsSnapshot()) {
+                client.delivered.remove(transfer.getId());
+                client.sendMessage("/file-cancel " + transfer.getId());
+            }
+            transfer.discard();
+        }
+
+        /**
+         * Reads a compressed message announced by a "/z" header, expands it and relays it.
+         * The expanded message must be a single line: line breaks inside it would reach
+         * recipients without compression as separate, unprefixed lines.
+         */
+        private void relayCompressed(String header) throws IOException {
+            String[] parts = header.split(" ");
+            int compressedLength;
+            int originalLength;
+            try {
+                compressedLength = Integer.parseInt(parts[1]);
+                originalLength = Integer.parseInt(parts[2]);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed compressed frame header: " + header);
+            }
+            if (compressedLength < 0 || compressedLength > MessageCompression.MAX_MESSAGE_SIZE) {
+                throw new IOException("Compressed frame too large: " + compressedLength);
+            }
+            if (compressedInput == null || compressedInput.length < compressedLength) {
+                compressedInput = new byte[Math.max(compressedLength, READ_BUFFER_SIZE)];
+            }
+            readExact(compressedInput, compressedLength);
+
+            MessageCompression context = MessageCompression.acquire();
+            try {
+                context.decompress(compressedInput, compressedLength, originalLength);
+                byte[] output = context.getOutput();
+                for (int i = 0; i < context.getOutputLength(); i++) {
+                    if (output[i] == '\n' || output[i] == '\r') {
+                        throw new IOException("Compressed frame contains a line break");
+                    }
+                }
+                broadcastFrame(context.getOutput(), 0, context.getOutputLength());
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame: " + e.getMessage());
+            } finally {
+                MessageCompression.release(context);
+                if (lean) {
+                    compressedInput = null;
+                }
+            }
+        }
+
+        /**
+         * Reads exactly length bytes that follow the current frame, starting with
+         * whatever is already buffered
+         */
+        private void readExact(byte[] destination, int length) throws IOException {
+            int copied = Math.min(length, readEnd - frameStart);
+            System.arraycopy(readBuffer, frameStart, destination, 0, copied);
+            frameStart += copied;
+            while (copied < length) {
+                int count = in.read(destination, copied, length - copied);
+                if (count < 0) {
+                    throw new EOFException("Client disconnected in the middle of a frame");
+                }
+                copied += count;
+            }
+        }
+
+        /**
+         * Finds the next newline, reading from the socket as needed. Unconsumed bytes are
+         * moved to the front of the buffer before reading, and the buffer is enlarged
+         * only for lines longer than the pooled buffer. A lean connection with nothing
+         * buffered gives its buffer back to the pool while it waits for the client.
+         *
+         * @return Index of the newline ending the frame that starts at frameStart,
+         *         or -1 once the client has disconnected
+         */
+        private int nextFrame() throws IOException {
+            int scanFrom = frameStart;
+            while (true) {
+                for (int i = scanFrom; i < readEnd; i++) {
+                    if (readBuffer[i] == '\n') {
+                        return i;
+                    }
+                }
+                if (lean && frameStart == readEnd) {
+                    if (!awaitData()) {
+                        return -1;
+                    }
+                    scanFrom = 0;
+                    continue;
+                }
+                // No complete line buffered - make room and read more
+                if (frameStart > 0) {
+                    System.arraycopy(readBuffer, frameStart, readBuffer, 0, readEnd - frameStart);
+                    readEnd -= frameStart;
+                    frameStart = 0;
+                }
+                if (readEnd == readBuffer.length) {
+                    readBuffer = Arrays.copyOf(readBuffer, readBuffer.length * 2);
+                }
+                scanFrom = readEnd;
+                int count = in.read(readBuffer, readEnd, readBuffer.length - readEnd);
+                if (count < 0) {
+                    return -1;
+                }
+                if (tracing) {
+                    lastReadAt = System.nanoTime();
+                }
+                readEnd += count;
+            }
+        }
+
+        /**
+         * Waits for the client without holding a buffer, then borrows one for the data
+         * that arrived. The first byte is read on its own; the rest of the frame is
+         * normally already in the socket buffer and is read by the caller.
+         *
+         * @return false once the client has disconnected
+         */
+        private boolean awaitData() throws IOException {
+            releaseBuffer();
+            frameStart = 0;
+            readEnd = 0;
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            if (tracing) {
+                lastReadAt = System.nanoTime();
+            }
+            readBuffer = bufferPool.acquire();
+            readBuffer[0] = (byte) first;
+            readEnd = 1;
+            return true;
+        }
+
+        /**
+         * @return Length of the frame ending at the given newline, without any trailing \r
+         */
+        private int frameLength(int newline) {
+            int length = newline - frameStart;
+            if (length > 0 && readBuffer[newline - 1] == '\r') {
+                length--;
+            }
+            return length;
+        }
+
+        /**
+         * Compares the current frame with a command without decoding it
+         */
+        private boolean isCommand(byte[] command, int length) {
+            if (length != command.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (readBuffer[frameStart + i] != command[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Relays a chat message from this client to all other clients.
+         * Long messages are compressed at most once, on the first recipient that
+         * accepts compression, and the result is shared by all such recipients.
+         */
+        private void broadcastFrame(byte[] data, int offset, int length) {
+            RelayTracing.MessageRelay event = sampledRelay;
+            sampledRelay = null;
+            long fanOutStart = 0;
+            if (event != null) {
+                fanOutStart = System.nanoTime();
+                event.decodeNanos = fanOutStart - traceStart;
+                event.sender = clientName;
+                event.length = length;
+                event.compressed = data != readBuffer;
+            }
+            history.submit(namePrefix, namePrefix.length - NAME_SEPARATOR.length, data, offset, length);
+            if (event != null) {
+                event.enqueueNanos = System.nanoTime() - fanOutStart;
+            }
+            relayedMessages.increment();
+            relayedBytes.add(length);
+            TrafficCapture trace = capture;
+            if (trace != null) {
+                trace.message(connectionId, length);
+            }
+            boolean compressible = length >= MessageCompression.THRESHOLD;
+            MessageCompression compressed = null;
+            try {
+                for (ClientHandler client : recipients) {
+                    if (client == this) {  // Don't send message back to sender
+                        continue;
+                    }
+                    if (compressible && client.acceptsDeflate) {
+                        if (compressed == null) {
+                            compressed = MessageCompression.acquire();
+                            compressible = compressed.compress(namePrefix, data, offset, length);
+                        }
+                        if (compressible) {
+                            client.sendCompressed(compressed, event);
+                            continue;
+                        }
+                    }
+                    client.sendFrame(OutboundLanes.BULK, namePrefix, data, offset, length, event);
+                }
+            } finally {
+                if (compressed != null) {
+                    MessageCompression.release(compressed);
+                }
+            }
+            if (event != null) {
+                event.fanOutNanos = System.nanoTime() - fanOutStart;
+                event.commit();
+            }
+        }
+
+        /**
+         * Broadcasts a message to all connected clients except the sender
+         */
+        private void broadcastMessage(String message) {
+            byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+            for (ClientHandler client : recipients) {
+                if (client != this) {  // Don't send message back to sender
+                    client.sendFrame(OutboundLanes.CONTROL, null, encoded, 0, encoded.length);
                 }
             }
-            broadcastMessage(userList.toString());
         }
 
         /**
          * Sends a message to this specific client
          */
         public void sendMessage(String message) {
-            out.println(message);
+            byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+            sendFrame(OutboundLanes.CONTROL, null, encoded, 0, encoded.length);
         }
 
         /**
-         * Closes the client connection and performs cleanup
+         * Writes one line to this client: an optional prefix, the payload and a newline.
+         * Writers take turns through the outbound lanes so frames from different senders
+         * never interleave, and control frames go ahead of waiting chat lines.
+         * A client whose socket fails is disconnected; its own thread then cleans up.
+         *
+         * @param lane OutboundLanes.CONTROL for server notices and protocol replies,
+         *             OutboundLanes.BULK for chat
+         * @return true if the frame was written and flushed
          */
-        public void close() {
+        boolean sendFrame(int lane, byte[] prefix, byte[] data, int offset, int length) {
+            return sendFrame(lane, prefix, data, offset, length, null);
+        }
+
+        /**
+         * sendFrame for a relayed message, adding this recipient's lane wait, write and
+         * flush times to the message's trace when it is sampled
+         */
+        boolean sendFrame(int lane, byte[] prefix, byte[] data, int offset, int length,
+                          RelayTracing.MessageRelay trace) {
+            long waitStart = trace != null ? System.nanoTime() : 0;
+            if (out == null || !lanes.acquire(lane)) {
+                return false;  // Still connecting
+            }
+            try {
+                OutputStream stream = out;
+                if (stream == null) {
+                    return false;
+                }
+                long writeStart = trace != null ? System.nanoTime() : 0;
+                if (prefix != null) {
+                    stream.write(prefix);
+                }
+                stream.write(data, offset, length);
+                stream.write('\n');
+                long flushStart = trace != null ? System.nanoTime() : 0;
+                stream.flush();
+                if (trace != null) {
+                    trace.recipient(writeStart - waitStart, flushStart - writeStart, System.nanoTime() - flushStart);
+                }
+                return true;
+            } catch (IOException e) {
+                logError("Error sending to " + clientName + ": " + e.getMessage());
+                closeSocket();
+                return false;
+            } finally {
+                lanes.release();
+            }
+        }
+
+        /**
+         * Writes a compressed frame: the "/z" header line followed by the deflate bytes
+         *
+         * @param trace The relayed message's event when it is sampled, otherwise null
+         */
+        void sendCompressed(MessageCompression compressed, RelayTracing.MessageRelay trace) {
+            long waitStart = trace != null ? System.nanoTime() : 0;
+            if (out == null || !lanes.acquire(OutboundLanes.BULK)) {
+                return;
+            }
+            try {
+                OutputStream stream = out;
+                if (stream == null) {
+                    return;
+                }
+                long writeStart = trace != null ? System.nanoTime() : 0;
+                stream.write(compressed.getHeader(), 0, compressed.getHeaderLength());
+                stream.write('\n');
+                stream.write(compressed.getOutput(), 0, compressed.getOutputLength());
+                long flushStart = trace != null ? System.nanoTime() : 0;
+                stream.flush();
+                if (trace != null) {
+                    trace.recipient(writeStart - waitStart, flushStart - writeStart, System.nanoTime() - flushStart);
+                }
+            } catch (IOException e) {
+                logError("Error sending to " + clientName + ": " + e.getMessage());
+                closeSocket();
+            } finally {
+                lanes.release();
+            }
+        }
+
+        /**
+         * Writes one file chunk to this client. Plain connections get the bytes straight
+         * from the spool via transferTo; TLS connections have no channel, so the chunk
+         * already in memory is written through the encrypting stream instead.
+         */
+        void sendChunk(FileTransfer<ClientHandler> transfer, long position, byte[] chunk, int length) {
+            if (out == null || !lanes.acquire(OutboundLanes.BULK)) {
+                return;
+            }
+            try {
+                Long next = delivered.get(transfer.getId());
+                if (next == null || position != next) {
+                    return;  // Cancelled, or catchUp() sends (or has sent) it from the spool
+                }
+                OutputStream stream = out;
+                if (stream == null) {
+                    return;
+                }
+                writeChunkHeader(stream, transfer.getId(), length);
+                SocketChannel channel = clientSocket.getChannel();
+                if (channel != null) {
+                    stream.flush();
+                    transfer.transferTo(position, length, channel);
+                } else {
+                    stream.write(chunk, 0, length);
+                    stream.flush();
+                }
+                delivered.put(transfer.getId(), position + length);
+            } catch (IOException e) {
+                logError("Error sending file to " + clientName + ": " + e.getMessage());
+                closeSocket();
+            } finally {
+                lanes.release();
+            }
+        }
+
+        /**
+         * Tells this client a file is complete, unless catchUp() is still sending it,
+         * in which case the catch-up does so once it has sent the last chunk
+         */
+        void endDelivery(long id, long size) {
+            if (!lanes.acquire(OutboundLanes.BULK)) {
+                return;
+            }
             try {
-                clients.remove(this);
-                if (clientName != null) {
-                    broadcastMessage("SERVER: " + clientName + " has left the chat");
+                Long next = delivered.get(id);
+                if (next != null && next == size) {
+                    delivered.remove(id);
+                    sendMessage("/file-end " + id);
                 }
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (clientSocket != null) clientSocket.close();
+            } finally {
+                lanes.release();
+            }
+        }
+
+        private void writeChunkHeader(OutputStream stream, long id, int length) throws IOException {
+            stream.write(("/chunk " + id + " " + length + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void closeSocket() {
+            try {
+                clientSocket.close();
             } catch (IOException e) {
-                System.err.println("Error closing client handler: " + e.getMessage());
+                logError("Error closing client socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Closes the client connection and performs cleanup.
+         * May be called both by this handler's thread and by stop().
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                out = null;  // Closing the socket below also closes both streams
+            }
+            if (shuttingDown) {
+                closeSocket();  // stop() takes care of everything else in bulk
+                return;
+            }
+            removeClient(this);
+            for (FileTransfer<ClientHandler> transfer : transfers.values()) {
+                if (transfer.getSender() == this) {
+                    cancelTransfer(transfer);
+                } else {
+                    transfer.removeRecipient(this);
+                }
+            }
+            if (clientName != null) {
+                presence.departed(clientName);
+                TrafficCapture trace = capture;
+                if (trace != null) {
+                    trace.disconnected(connectionId);
+                }
+                RelayTracing.ClientDisconnected event = new RelayTracing.ClientDisconnected();
+                if (event.shouldCommit()) {
+                    event.user = clientName;
+                    event.address = clientSocket.getInetAddress().getHostAddress();
+                    event.connectedMillis = System.currentTimeMillis() - connectedAt;
+                    event.commit();
+                }
+            } else {
+                refreshRecipients();
+            }
+            closeSocket();
+        }
+
+        /**
+         * Sends the shutdown notice, flushes it and closes the connection. Used by
+         * stop(), which closes the socket from outside if this blocks past the deadline.
+         */
+        void drain() {
+            // The notice goes ahead of any chat lines still waiting to be written
+            boolean turn = lanes.acquire(OutboundLanes.CONTROL);
+            try {
+                OutputStream stream;
+                synchronized (this) {
+                    stream = out;
+                    closed = true;
+                    out = null;
+                }
+                if (stream != null && turn) {
+                    try {
+                        stream.write(SHUTDOWN_NOTICE);
+                        stream.write('\n');
+                        stream.flush();
+                        if (!(clientSocket instanceof SSLSocket)) {
+                            // Send FIN behind the notice so the client reads it before EOF
+                            clientSocket.shutdownOutput();
+                        }
+                    } catch (IOException e) {
+                        // Client is already gone - nothing left to flush
+                    }
+                }
+            } finally {
+                if (turn) {
+                    lanes.release();
+                }
+            }
+            closeSocket();
+        }
+
+        /**
+         * Returns the read buffer to the pool; only called by the handler's own thread
+         */
+        private void releaseBuffer() {
+            if (readBuffer != null) {
+                bufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Sends a line to every open connection logged in under the given name
+     *
+     * @return Number of connections it was sent to
+     */
+    private int sendDirect(String name, String line) {
+        byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+        int sent = 0;
+        for (ClientHandler client : recipients) {
+            if (name.equals(client.clientName) && !client.closed) {
+                client.sendFrame(OutboundLanes.BULK, null, encoded, 0, encoded.length);
+                sent++;
             }
         }
+        return sent;
+    }
+
+    private static String directLine(long timestamp, String sender, String text) {
+        return "/dm " + timestamp + " " + URLEncoder.encode(sender, StandardCharsets.UTF_8) + " "
+            + URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
     }
 
     /**
      * Main method to start the server
      * Includes shutdown hook for graceful server shutdown
+     *
+     * Options: --port <n> to change the port, --tls to require TLS using the
+     * key store named by the javax.net.ssl.keyStore system properties, and
+     * --capture <file> to record the traffic for TrafficReplay, and --mailboxes <dir>
+     * to keep offline direct messages somewhere other than ./mailboxes, and --lean to
+     * keep each connection to a small memory budget
      */
-    public static void main(String[] args) {
-        ChatServer server = new ChatServer();
+    public static void main(String[] args) throws IOException {
+        int port = PORT;
+        SSLContext sslContext = null;
+        String capturePath = null;
+        String mailboxPath = null;
+        boolean lean = Arrays.asList(args).contains("--lean");
+        if (lean) {
+            useLeanConnections();  // Before anything touches a socket
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--tls")) {
+                sslContext = ServerTls.createContextFromSystemProperties();
+            } else if (args[i].equals("--capture") && i + 1 < args.length) {
+                capturePath = args[++i];
+            } else if (args[i].equals("--mailboxes") && i + 1 < args.length) {
+                mailboxPath = args[++i];
+            }
+        }
+        ChatServer server = new ChatServer(port, sslContext);
+        server.setLeanConnections(lean);
+        if (mailboxPath != null) {
+            server.setMailboxStore(new MailboxStore(new File(mailboxPath)));
+        }
+        if (capturePath != null) {
+            server.setTrafficCapture(new TrafficCapture(new File(capturePath)));
+            System.out.println("Capturing traffic to " + capturePath);
+        }
         
         // Add shutdown hook for graceful shutdown on program termination
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -0,0 +1,453 @@
+package server;
+
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConnectionSoakTest holds a large number of connections open against a ChatServer for
+ * a long time, to find out what one connection costs and to catch leaks.
+ *
+ * The server runs in a child JVM, so its memory is measured without the clients. This
+ * process opens the connections with non-blocking channels drained by one selector
+ * thread, so it needs no thread per connection. Once every connection is open, each
+ * interval it:
+ *   - disconnects and reconnects a share of the connections (--churn percent),
+ *   - keeps a trickle of chat flowing (--messages per second), and
+ *   - asks the server for its heap after a full GC, its resident set size, its direct
+ *     buffer memory and its thread count, and prints them per connection.
+ * A heap, or in the second half of the run a resident set, that keeps growing after the
+ * connections are all open is reported as a suspected leak, and the test exits with
+ * status 1. It also fails if connections are lost, or if in any sample a lean
+ * connection takes more heap than ChatServer.LEAN_HEAP_BUDGET.
+ *
+ * The server uses lean connections (ChatServer --lean) unless --standard is given. It
+ * does not announce joins and departures, see ChatServer.setPresenceAnnounced.
+ * Arguments after "--" are passed to the server's JVM, e.g. -Xmx2g.
+ *
+ * Connections are spread over source addresses 127.0.0.1, 127.0.0.2, ... so more than
+ * one address's worth of ephemeral ports can be used; this works on Linux. 100,000
+ * connections need, for both processes, an open file limit above that (ulimit -n), and
+ * for the server room for as many threads (kernel.threads-max, kernel.pid_max,
+ * vm.max_map_count and ulimit -u).
+ *
+ * Usage: java server.ConnectionSoakTest [connections=100000] [minutes=120] [--standard]
+ *            [--interval seconds=60] [--churn percent=1] [--messages perSecond=1]
+ *            [-- server JVM options]
+ */
+public class ConnectionSoakTest {
+    private static final int CONNECTIONS_PER_ADDRESS = 20_000;
+    private static final double LEAK_GROWTH = 0.10;     // Memory growth that counts as a leak
+    private static final int LEAK_SAMPLES = 3;          // ... if it also rose in this many samples in a row
+
+    private final int port;
+    private final SocketChannel[] channels;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingRegistration = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong connectionsLost = new AtomicLong();
+    private volatile boolean stopping;
+    private long connectionsOpened;
+
+    ConnectionSoakTest(int port, int connections) throws IOException {
+        this.port = port;
+        this.channels = new SocketChannel[connections];
+        this.selector = Selector.open();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(Integer.parseInt(args[1]), args.length > 2 && args[2].equals("--standard"));
+            return;
+        }
+        int connections = 100_000;
+        double minutes = 120;
+        boolean standard = false;
+        int intervalSeconds = 60;
+        double churnPercent = 1;
+        int messagesPerSecond = 1;
+        List<String> serverJvmOptions = new ArrayList<>();
+        int positional = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--")) {
+                serverJvmOptions.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (args[i].equals("--standard")) {
+                standard = true;
+            } else if (args[i].equals("--interval") && i + 1 < args.length) {
+                intervalSeconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--churn") && i + 1 < args.length) {
+                churnPercent = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--messages") && i + 1 < args.length) {
+                messagesPerSecond = Integer.parseInt(args[++i]);
+            } else if (positional++ == 0) {
+                connections = Integer.parseInt(args[i]);
+            } else {
+                minutes = Double.parseDouble(args[i]);
+            }
+        }
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(serverJvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ConnectionSoakTest.class.getName());
+        command.add("--serve");
+        command.add(String.valueOf(port));
+        if (standard) {
+            command.add("--standard");
+        }
+        Process server = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader reports = new BufferedReader(
+            new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter requests = new PrintWriter(
+            new OutputStreamWriter(server.getOutputStream(), StandardCharsets.UTF_8), true);
+
+        boolean passed = false;
+        try {
+            if (!"ready".equals(reports.readLine())) {
+                throw new IOException("Server process did not start");
+            }
+            ConnectionSoakTest test = new ConnectionSoakTest(port, connections);
+            passed = test.run(minutes, standard, intervalSeconds, churnPercent, messagesPerSecond,
+                requests, reports);
+        } finally {
+            requests.println("quit");
+            if (!server.waitFor(30, java.util.concurrent.TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(double minutes, boolean standard, int intervalSeconds, double churnPercent,
+                        int messagesPerSecond, PrintWriter requests, BufferedReader reports)
+            throws IOException, InterruptedException {
+        Thread reader = new Thread(this::runReader, "soak-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        warmUp();
+        Map<String, Long> empty = awaitClients(requests, reports, 0);
+        System.out.printf("%s connections, %,d to open; empty server: heap %s, RSS %s, %d threads%n",
+            standard ? "Standard" : "Lean", channels.length, megabytes(empty.get("heap")),
+            megabytes(empty.get("rss")), empty.get("threads"));
+
+        long rampStart = System.nanoTime();
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = open(i);
+            if ((i + 1) % 10_000 == 0) {
+                System.out.printf("  %,d open after %.1f s%n", i + 1, (System.nanoTime() - rampStart) / 1e9);
+            }
+        }
+        Map<String, Long> full = awaitClients(requests, reports, channels.length);
+        System.out.printf("Opened %,d connections in %.1f s%n", channels.length,
+            (System.nanoTime() - rampStart) / 1e9);
+        System.out.printf("%n%8s %9s %10s %10s %10s %9s %9s %9s %9s %8s %6s%n", "minutes", "clients",
+            "heap", "RSS", "direct", "heap/conn", "dir/conn", "nat/conn", "RSS/conn", "threads", "lost");
+        printRow(0, full, empty);
+
+        Random random = new Random(1);
+        List<Long> heapSamples = new ArrayList<>();
+        List<Long> rssSamples = new ArrayList<>();
+        heapSamples.add(full.get("heap"));
+        rssSamples.add(full.get("rss"));
+        long heapPerConnection = perConnection(full, empty, "heap");   // Largest of any sample
+        long start = System.nanoTime();
+        long end = start + (long) (minutes * 60e9);
+        long messages = 0;
+        int ticks = Math.max(1, intervalSeconds * Math.max(1, messagesPerSecond));
+        long tickMillis = intervalSeconds * 1000L / ticks;
+        int churnPerInterval = (int) (channels.length * churnPercent / 100);
+        while (System.nanoTime() < end) {
+            // Spread the interval's messages and reconnects evenly over it
+            for (int tick = 0; tick < ticks && System.nanoTime() < end; tick++) {
+                if (messagesPerSecond > 0) {
+                    send(random.nextInt(channels.length), "soak message " + messages++);
+                }
+                int churn = churnPerInterval * (tick + 1) / ticks - churnPerInterval * tick / ticks;
+                for (int i = 0; i < churn; i++) {
+                    int index = random.nextInt(channels.length);
+                    channels[index].close();
+                    channels[index] = open(index);
+                }
+                Thread.sleep(tickMillis);
+            }
+            Map<String, Long> sample = awaitClients(requests, reports, channels.length);
+            printRow((System.nanoTime() - start) / 60e9, sample, empty);
+            heapSamples.add(sample.get("heap"));
+            rssSamples.add(sample.get("rss"));
+            heapPerConnection = Math.max(heapPerConnection, perConnection(sample, empty, "heap"));
+        }
+        stopping = true;
+
+        // The resident set grows for a few minutes while the JIT and allocator warm up,
+        // so only its second half is judged
+        boolean heapLeak = suspectLeak(heapSamples, 0);
+        boolean rssLeak = suspectLeak(rssSamples, rssSamples.size() / 2);
+        boolean overBudget = !standard && heapPerConnection > ChatServer.LEAN_HEAP_BUDGET;
+        System.out.printf("%nOpened %,d connections in total, %,d lost, %s received%n",
+            connectionsOpened, connectionsLost.get(), megabytes(bytesReceived.get()));
+        System.out.printf("Heap after GC went from %s to %s with all connections open: %s%n",
+            megabytes(heapSamples.get(0)), megabytes(heapSamples.get(heapSamples.size() - 1)),
+            heapLeak ? "SUSPECTED LEAK" : "no leak detected");
+        System.out.printf("RSS went from %s to %s over the second half of the run: %s%n",
+            megabytes(rssSamples.get(rssSamples.size() / 2)), megabytes(rssSamples.get(rssSamples.size() - 1)),
+            rssLeak ? "SUSPECTED LEAK" : "no leak detected");
+        if (!standard) {
+            System.out.printf("Heap per connection at most %,d B, budget %,d B: %s%n", heapPerConnection,
+                ChatServer.LEAN_HEAP_BUDGET, overBudget ? "OVER BUDGET" : "within budget");
+        }
+        return !heapLeak && !rssLeak && !overBudget && connectionsLost.get() == 0;
+    }
+
+    /**
+     * @return true if the samples from the given one on grew by more than LEAK_GROWTH
+     *         and were still rising at the end of the run
+     */
+    private static boolean suspectLeak(List<Long> samples, int from) {
+        int count = samples.size();
+        if (count - from <= LEAK_SAMPLES) {
+            return false;
+        }
+        for (int i = count - LEAK_SAMPLES; i < count; i++) {
+            if (samples.get(i) <= samples.get(i - 1)) {
+                return false;
+            }
+        }
+        return samples.get(count - 1) > samples.get(from) * (1 + LEAK_GROWTH);
+    }
+
+    /**
+     * Relays one message through the server before it is measured empty, so that what
+     * the first message allocates once (such as the history's first text segment) is
+     * not counted against the connections
+     */
+    private void warmUp() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write("soak-warmup\nwarming up\n/quit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            while (in.read() >= 0) {
+                // Wait for the server to close the connection
+            }
+        } catch (SocketTimeoutException e) {
+            // Measured anyway; the server just kept the connection a little longer
+        }
+    }
+
+    /**
+     * Opens connection number index and logs in. Blocking while connecting keeps the
+     * ramp at the pace the server accepts; the channel is then drained by the reader.
+     */
+    private SocketChannel open(int index) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            int address = 1 + index / CONNECTIONS_PER_ADDRESS;
+            channel.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) address}), 0));
+            channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            channel.write(ByteBuffer.wrap(("soak" + index + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw new IOException("Could not open connection " + index + " (check ulimit -n and the"
+                + " server's thread limits): " + e.getMessage(), e);
+        }
+        pendingRegistration.add(channel);
+        selector.wakeup();
+        connectionsOpened++;
+        return channel;
+    }
+
+    private void send(int index, String message) {
+        ByteBuffer line = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            for (int attempts = 0; line.hasRemaining() && attempts < 100; attempts++) {
+                channels[index].write(line);
+            }
+        } catch (IOException e) {
+            // Lost; the reader counts it
+        }
+    }
+
+    /**
+     * Reads and discards everything the server sends, so it never blocks on us
+     */
+    private void runReader() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                SocketChannel channel;
+                while ((channel = pendingRegistration.poll()) != null) {
+                    if (channel.isOpen()) {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel readable = (SocketChannel) key.channel();
+                    int count;
+                    try {
+                        buffer.clear();
+                        count = readable.read(buffer);
+                    } catch (IOException e) {
+                        count = -1;
+                    }
+                    if (count < 0) {
+                        key.cancel();
+                        // A channel we closed to reconnect it is not a lost connection
+                        if (readable.isOpen() && !stopping) {
+                            connectionsLost.incrementAndGet();
+                        }
+                        readable.close();
+                    } else {
+                        bytesReceived.addAndGet(count);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Reader stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measures the server once it has as many clients as expected, which may lag behind
+     * the client side while it accepts or closes connections
+     */
+    private static Map<String, Long> awaitClients(PrintWriter requests, BufferedReader reports, int expected)
+            throws IOException, InterruptedException {
+        Map<String, Long> sample = measure(requests, reports);
+        for (int attempts = 0; sample.get("clients") != expected && attempts < 30; attempts++) {
+            Thread.sleep(1000);
+            sample = measure(requests, reports);
+        }
+        return sample;
+    }
+
+    private static Map<String, Long> measure(PrintWriter requests, BufferedReader reports) throws IOException {
+        requests.println("measure");
+        String line = reports.readLine();
+        if (line == null) {
+            throw new EOFException("Server process exited");
+        }
+        Map<String, Long> values = new HashMap<>();
+        for (String pair : line.split(" ")) {
+            String[] parts = pair.split("=");
+            values.put(parts[0], Long.parseLong(parts[1]));
+        }
+        return values;
+    }
+
+    /**
+     * Prints one sample. Native memory is the resident set outside the Java heap and
+     * direct buffers: mostly the handler threads' stacks and the JVM's per-thread data.
+     */
+    private void printRow(double minutes, Map<String, Long> sample, Map<String, Long> empty) {
+        long clients = Math.max(1, sample.get("clients"));
+        System.out.printf("%8.1f %,9d %10s %10s %10s %9s %9s %9s %9s %8d %6d%n", minutes, sample.get("clients"),
+            megabytes(sample.get("heap")), megabytes(sample.get("rss")), megabytes(sample.get("direct")),
+            bytes(perConnection(sample, empty, "heap")), bytes(perConnection(sample, empty, "direct")),
+            bytes(perConnection(sample, empty, "rss") - perConnection(sample, empty, "committed")
+                - perConnection(sample, empty, "direct")),
+            bytes(perConnection(sample, empty, "rss")), sample.get("threads"), connectionsLost.get());
+    }
+
+    private static long perConnection(Map<String, Long> sample, Map<String, Long> empty, String key) {
+        return (sample.get(key) - empty.get(key)) / Math.max(1, sample.get("clients"));
+    }
+
+    private static String bytes(long value) {
+        return String.format("%,d B", value);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1e6);
+    }
+
+    /**
+     * Runs the chat server in the child process and answers "measure" requests on stdin
+     * with one line of measurements on stdout, until "quit"
+     */
+    private static void serve(int port, boolean standard) throws IOException, InterruptedException {
+        if (!standard) {
+            ChatServer.useLeanConnections();
+        }
+        PrintStream reports = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // The server logs every connection
+        ChatServer server = new ChatServer(port, null);
+        server.setLeanConnections(!standard);
+        server.setPresenceAnnounced(false);
+        Thread serverThread = new Thread(server::start, "soak-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+        reports.println("ready");
+        reports.flush();
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String request;
+        while ((request = requests.readLine()) != null && !request.equals("quit")) {
+            System.gc();
+            System.gc();
+            long direct = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                direct += pool.getMemoryUsed();
+            }
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            reports.printf("clients=%d heap=%d committed=%d rss=%d direct=%d threads=%d%n",
+                server.getClientCount(),
+                heap.getUsed(),
+                heap.getCommitted(),
+                residentSetSize(),
+                direct,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+            reports.flush();
+        }
+        server.stop(0);
+        System.exit(0);
+    }
+
+    /**
+     * @return This process's resident set size, or 0 where /proc is not available
+     */
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // Not Linux
+        }
+        return 0;
+    }
+}
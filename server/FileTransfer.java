@@ -0,0 +1,192 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FileTransfer tracks one file offered by a client and spools its chunks to disk.
+ *
+ * Chunks are appended to a temporary spool file as they arrive, so the server never
+ * holds a whole file in memory. Recipients that accepted the offer are sent each chunk
+ * straight from the spool (FileChannel.transferTo lets the kernel copy page cache to
+ * the socket), and a recipient that accepts late is first caught up from the spool.
+ *
+ * @param <R> Type of the connection handlers that receive the file
+ */
+class FileTransfer<R> {
+    private final long id;              // Server-assigned transfer id
+    private final R sender;             // Handler of the client offering the file
+    private final long size;            // Declared file size in bytes
+    private final String fileName;      // File name as offered (no path)
+    private final Path spoolPath;       // Temporary spool file
+    private final FileChannel spool;    // Spool opened for append and read
+    private final List<R> recipients = new ArrayList<>();  // Clients that accepted
+    private long received;              // Bytes spooled so far
+    private boolean complete;           // Sender has sent every chunk
+    private boolean streaming;          // Sender has been told to start
+
+    FileTransfer(long id, R sender, long size, String fileName) throws IOException {
+        this.id = id;
+        this.sender = sender;
+        this.size = size;
+        this.fileName = fileName;
+        this.spoolPath = Files.createTempFile("chat-transfer-", ".spool");
+        this.spool = FileChannel.open(spoolPath, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    long getId() {
+        return id;
+    }
+
+    R getSender() {
+        return sender;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Appends a chunk to the spool and captures the recipients that must receive it.
+     * Doing both under one lock keeps late joiners from missing or repeating a chunk.
+     *
+     * @param snapshot Cleared and filled with the current recipients
+     * @return The spool position the chunk was written at
+     * @throws IOException If the chunk would exceed the declared size or the write fails
+     */
+    synchronized long append(byte[] data, int length, List<R> snapshot) throws IOException {
+        if (complete || received + length > size) {
+            throw new IOException("Transfer " + id + " received more data than offered");
+        }
+        long position = received;
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            spool.write(buffer, position + buffer.position());
+        }
+        received += length;
+        snapshot.clear();
+        snapshot.addAll(recipients);
+        return position;
+    }
+
+    /**
+     * @return A copy of the current recipient list, safe to iterate without the lock
+     */
+    synchronized List<R> recipientsSnapshot() {
+        return new ArrayList<>(recipients);
+    }
+
+    /**
+     * Adds a recipient of live chunks. The recipient is responsible for catching up on
+     * what was spooled before it joined. A recipient joining a completed transfer is not
+     * registered, as no more chunks will arrive.
+     */
+    synchronized void addRecipient(R recipient) {
+        if (!complete && !recipients.contains(recipient)) {
+            recipients.add(recipient);
+        }
+    }
+
+    /**
+     * @return Bytes spooled so far
+     */
+    synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return true once the sender has sent every chunk. Check this before
+     *         getReceived(), which is then final.
+     */
+    synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized void removeRecipient(R recipient) {
+        recipients.remove(recipient);
+    }
+
+    /**
+     * @return true the first time this is called, when the sender should start streaming
+     */
+    synchronized boolean startStreaming() {
+        if (streaming) {
+            return false;
+        }
+        streaming = true;
+        return true;
+    }
+
+    /**
+     * Marks the transfer complete
+     *
+     * @return The recipients that must be told the transfer has ended
+     * @throws IOException If fewer bytes arrived than were offered
+     */
+    synchronized List<R> markComplete() throws IOException {
+        if (received != size) {
+            throw new IOException("Transfer " + id + " ended after " + received + " of " + size + " bytes");
+        }
+        complete = true;
+        return new ArrayList<>(recipients);
+    }
+
+    /**
+     * @return false once the spool has been discarded
+     */
+    boolean isOpen() {
+        return spool.isOpen();
+    }
+
+    /**
+     * Copies part of the spool to a channel without passing through the Java heap
+     */
+    void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long count = spool.transferTo(position, end - position, target);
+            if (count <= 0 && !target.isOpen()) {
+                throw new IOException("Channel closed during transfer");
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Reads part of the spool into a caller-provided buffer
+     *
+     * @return Number of bytes read
+     */
+    int read(long position, byte[] destination, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(destination, 0, length);
+        while (buffer.hasRemaining()) {
+            if (spool.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Closes and deletes the spool file
+     */
+    void discard() {
+        try {
+            spool.close();
+        } catch (IOException e) {
+            System.err.println("Error deleting spool " + spoolPath + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * HistorySearchBenchmark compares searching the chat history through the inverted
+ * index with a linear scan over the same messages.
+ *
+ * It feeds synthetic chat messages through MessageIndex.submit(), exactly as the relay
+ * threads do, waits for the indexer to catch up and then runs the same queries both
+ * ways. Rare words show the biggest gap, since the index only touches the messages
+ * that contain them.
+ *
+ * Usage: java server.HistorySearchBenchmark [messages]
+ */
+public class HistorySearchBenchmark {
+    private static final String[] COMMON = {
+        "the", "build", "is", "failing", "again", "on", "main", "can", "someone", "look",
+        "deploy", "tomorrow", "meeting", "at", "noon", "lunch", "anyone", "thanks", "ok", "fixed"
+    };
+    private static final String[] SENDERS = {"alice", "bob", "carol", "dave", "erin"};
+    private static final String[][] QUERIES = {
+        {"build failing", null},
+        {"deploy tomorrow", "carol"},
+        {"kubernetes", null},
+        {"xylophone42", null},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        // Retain every message so the linear search sees the same history
+        MessageIndex index = new MessageIndex(messages, Long.MAX_VALUE);
+        List<String> texts = new ArrayList<>(messages);
+        List<String> senders = new ArrayList<>(messages);
+        Random random = new Random(42);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 5 + random.nextInt(15);
+            for (int w = 0; w < words; w++) {
+                text.append(COMMON[random.nextInt(COMMON.length)]).append(' ');
+            }
+            if (random.nextInt(1000) == 0) {
+                text.append("kubernetes");
+            }
+            if (i == messages / 2) {
+                text.append("xylophone42");
+            }
+            String sender = SENDERS[random.nextInt(SENDERS.length)];
+            texts.add(text.toString());
+            senders.add(sender);
+            byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            byte[] textBytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            // Throttle so the ring never overflows and every message is indexed
+            while (i - index.size() > 10_000) {
+                Thread.sleep(1);
+            }
+            index.submit(senderBytes, senderBytes.length, textBytes, 0, textBytes.length);
+        }
+        while (index.size() + index.getDroppedCount() < messages) {
+            Thread.sleep(10);
+        }
+        System.out.printf("Indexed %,d messages in %d ms (%d dropped)%n",
+            index.size(), (System.nanoTime() - start) / 1_000_000, index.getDroppedCount());
+
+        for (String[] query : QUERIES) {
+            // Warm up both paths before timing them
+            index.search(query[0], query[1], Long.MIN_VALUE, Long.MAX_VALUE, MessageIndex.MAX_RESULTS);
+            linearScan(texts, senders, query[0], query[1]);
+
+            long indexStart = System.nanoTime();
+            MessageIndex.SearchResults results = index.search(query[0], query[1],
+                Long.MIN_VALUE, Long.MAX_VALUE, MessageIndex.MAX_RESULTS);
+            long indexTime = System.nanoTime() - indexStart;
+
+            long scanStart = System.nanoTime();
+            int scanned = linearScan(texts, senders, query[0], query[1]);
+            long scanTime = System.nanoTime() - scanStart;
+
+            System.out.printf(Locale.ROOT, "%-30s %,9d matches  index %8.3f ms  scan %8.3f ms%n",
+                "\"" + query[0] + "\"" + (query[1] != null ? " from:" + query[1] : ""),
+                results.total, indexTime / 1e6, scanTime / 1e6);
+            if (scanned != results.total) {
+                System.out.println("  mismatch: scan found " + scanned);
+            }
+        }
+        index.close();
+    }
+
+    /**
+     * Counts matches the slow way, tokenizing every message
+     */
+    private static int linearScan(List<String> texts, List<String> senders, String words, String sender) {
+        List<String> terms = MessageIndex.tokenize(words);
+        int matches = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            if (sender != null && !sender.equals(senders.get(i))) {
+                continue;
+            }
+            if (MessageIndex.tokenize(texts.get(i)).containsAll(terms)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LaneLatencyBenchmark measures how long control and chat frames wait for their turn
+ * on a connection while the server is flooded with chat.
+ *
+ * It starts a ChatServer in this process and connects a number of flooders, which send
+ * chat lines as fast as the server accepts them, and a few receivers. While the flood
+ * runs, a new probe client joins every 250 ms, so each receiver gets a presence update
+ * that has to get past the chat lines queued for it.
+ *
+ * Two latencies are reported:
+ *   - the time writers waited for their outbound lane, per lane, as recorded by the server
+ *   - the time from a probe connecting until every receiver has read its join notice;
+ *     this includes the presence batching window of up to 200 ms
+ *
+ * Usage: java server.LaneLatencyBenchmark [flooders=16] [receivers=4] [seconds=5]
+ */
+public class LaneLatencyBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final long PROBE_INTERVAL_MILLIS = 250;
+
+    public static void main(String[] args) throws Exception {
+        int flooderCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int receiverCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port, null);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        // Probe name -> nanoTime it connected, and -> receivers that have seen it join
+        Map<String, Long> probeStarts = new ConcurrentHashMap<>();
+        Map<String, List<Long>> probeLatencies = new ConcurrentHashMap<>();
+
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < receiverCount; i++) {
+            Socket socket = connect(port, "receiver" + i);
+            sockets.add(socket);
+            startReceiver(socket, probeStarts, probeLatencies);
+        }
+        for (int i = 0; i < flooderCount; i++) {
+            Socket socket = connect(port, "flooder" + i);
+            sockets.add(socket);
+            startDrain(socket);
+            startFlooder(socket, i);
+        }
+
+        Thread.sleep(1000);  // Let the flood reach a steady state
+        server.getLaneStats().reset();
+
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        int probes = 0;
+        while (System.currentTimeMillis() < end) {
+            String name = "probe" + probes++;
+            probeStarts.put(name, System.nanoTime());
+            Socket socket = connect(port, name);
+            sockets.add(socket);
+            startDrain(socket);
+            Thread.sleep(PROBE_INTERVAL_MILLIS);
+        }
+        Thread.sleep(1000);  // Let the last join notices arrive
+
+        OutboundLanes.Stats stats = server.getLaneStats();
+        System.out.printf("%d flooders, %d receivers, %d probes over %d s%n",
+            flooderCount, receiverCount, probes, seconds);
+        System.out.printf("Control lane: %,d frames, average wait %.1f us, max %.1f us%n",
+            stats.getFrames(OutboundLanes.CONTROL),
+            stats.getAverageWaitMicros(OutboundLanes.CONTROL),
+            stats.getMaxWaitMicros(OutboundLanes.CONTROL));
+        System.out.printf("Bulk lane:    %,d frames, average wait %.1f us, max %.1f us%n",
+            stats.getFrames(OutboundLanes.BULK),
+            stats.getAverageWaitMicros(OutboundLanes.BULK),
+            stats.getMaxWaitMicros(OutboundLanes.BULK));
+
+        long total = 0;
+        long max = 0;
+        int count = 0;
+        int incomplete = 0;
+        for (List<Long> latencies : probeLatencies.values()) {
+            synchronized (latencies) {
+                if (latencies.size() < receiverCount) {
+                    incomplete++;
+                }
+                for (long latency : latencies) {
+                    total += latency;
+                    max = Math.max(max, latency);
+                    count++;
+                }
+            }
+        }
+        System.out.printf("Join notices: average %.1f ms, max %.1f ms from connect to receipt"
+            + " (%d of %d probes not seen by every receiver)%n",
+            count == 0 ? 0 : total / 1e6 / count, max / 1e6, incomplete, probes);
+
+        server.stop();
+        System.exit(0);
+    }
+
+    private static Socket connect(int port, String name) throws IOException {
+        Socket socket = new Socket(HOST, port);
+        socket.getOutputStream().write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        return socket;
+    }
+
+    /**
+     * Sends chat lines as fast as the connection allows
+     */
+    private static void startFlooder(Socket socket, int index) {
+        byte[] line = ("flood " + index + " the quick brown fox jumps over the lazy dog\n")
+            .getBytes(StandardCharsets.UTF_8);
+        byte[] batch = new byte[line.length * 64];
+        for (int i = 0; i < 64; i++) {
+            System.arraycopy(line, 0, batch, i * line.length, line.length);
+        }
+        startDaemon("flooder-" + index, () -> {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    out.write(batch);
+                }
+            } catch (IOException e) {
+                // Server stopped
+            }
+        });
+    }
+
+    /**
+     * Discards everything the server sends, so the socket never backs up
+     */
+    private static void startDrain(Socket socket) {
+        startDaemon("drain", () -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = socket.getInputStream()) {
+                while (in.read(buffer) >= 0) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Server stopped
+            }
+        });
+    }
+
+    /**
+     * Reads lines and records when each probe's join notice arrives
+     */
+    private static void startReceiver(Socket socket, Map<String, Long> probeStarts,
+                                      Map<String, List<Long>> probeLatencies) {
+        startDaemon("receiver", () -> {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("SERVER: ") || !line.contains("joined")) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    for (Map.Entry<String, Long> probe : probeStarts.entrySet()) {
+                        if (line.matches(".*\\b" + probe.getKey() + "\\b.*")) {
+                            probeLatencies.computeIfAbsent(probe.getKey(), key -> new ArrayList<>());
+                            List<Long> latencies = probeLatencies.get(probe.getKey());
+                            synchronized (latencies) {
+                                latencies.add(now - probe.getValue());
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Server stopped
+            }
+        });
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
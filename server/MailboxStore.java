@@ -0,0 +1,294 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MailboxStore keeps direct messages for users who are not connected, on disk.
+ *
+ * Each user's mailbox is one append-only file named after a hash of the username, so
+ * the store holds nothing in memory per user: the directory is the index. Records are
+ * a timestamp, the sender and the text. A mailbox may not grow past its quota; expired
+ * messages are compacted away before a message is refused for lack of room. A sweeper
+ * deletes mailboxes whose newest message is older than the time-to-live, and a store-wide
+ * limit caps the disk used by all mailboxes together.
+ *
+ * Access to a mailbox is serialized by one of a fixed set of striped locks, so memory
+ * stays constant however many users have mail waiting.
+ */
+public class MailboxStore {
+    public static final long DEFAULT_QUOTA_BYTES = 64 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_MAX_STORE_BYTES = 256L * 1024 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAILBOX_NAME_LENGTH = 32;        // Hex digits of the name hash
+    private static final long SWEEP_INTERVAL_MINUTES = 60;
+
+    /**
+     * Outcome of storing a message
+     */
+    public enum Result { STORED, MAILBOX_FULL, STORE_FULL, FAILED }
+
+    /**
+     * One stored message
+     */
+    public static class Message {
+        public final long timestamp;
+        public final String sender;
+        public final String text;
+
+        Message(long timestamp, String sender, String text) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final File directory;
+    private final long quotaBytes;
+    private final long ttlMillis;
+    private final long maxStoreBytes;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong storeBytes = new AtomicLong();   // Disk used by all mailboxes
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Opens a store with the default quota, time-to-live and store-wide limit
+     */
+    public MailboxStore(File directory) {
+        this(directory, DEFAULT_QUOTA_BYTES, DEFAULT_TTL_MILLIS, DEFAULT_MAX_STORE_BYTES);
+    }
+
+    /**
+     * @param directory Where mailbox files live; created when the first message is stored
+     * @param quotaBytes Largest size of one user's mailbox
+     * @param ttlMillis How long a message is kept before it is discarded unread
+     * @param maxStoreBytes Largest size of all mailboxes together
+     */
+    public MailboxStore(File directory, long quotaBytes, long ttlMillis, long maxStoreBytes) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxStoreBytes = maxStoreBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        File[] existing = directory.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                storeBytes.addAndGet(file.length());
+            }
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Appends a message to a user's mailbox
+     */
+    public Result store(String recipient, String sender, String text) {
+        File file = fileFor(recipient);
+        synchronized (lockFor(recipient)) {
+            try {
+                byte[] record = encode(System.currentTimeMillis(), sender, text);
+                if (record.length > quotaBytes) {
+                    return Result.MAILBOX_FULL;
+                }
+                if (file.length() + record.length > quotaBytes) {
+                    compact(file);
+                    if (file.length() + record.length > quotaBytes) {
+                        return Result.MAILBOX_FULL;
+                    }
+                }
+                if (storeBytes.get() + record.length > maxStoreBytes) {
+                    return Result.STORE_FULL;
+                }
+                directory.mkdirs();
+                try (OutputStream out = new FileOutputStream(file, true)) {
+                    out.write(record);
+                }
+                storeBytes.addAndGet(record.length);
+                return Result.STORED;
+            } catch (IOException e) {
+                System.err.println("Error storing message for " + recipient + ": " + e.getMessage());
+                return Result.FAILED;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns every unexpired message waiting for a user, oldest first
+     */
+    public List<Message> takeAll(String recipient) {
+        File file = fileFor(recipient);
+        synchronized (lockFor(recipient)) {
+            if (!file.exists()) {
+                return new ArrayList<>();
+            }
+            List<Message> messages = read(file);
+            delete(file);
+            return messages;
+        }
+    }
+
+    /**
+     * Puts back messages taken by takeAll that could not be delivered, ahead of any that
+     * arrived since. They were already admitted once, so the quota and the store-wide
+     * limit do not apply.
+     */
+    public void restore(String recipient, List<Message> messages) {
+        File file = fileFor(recipient);
+        synchronized (lockFor(recipient)) {
+            try {
+                List<Message> all = new ArrayList<>(messages);
+                if (file.exists()) {
+                    all.addAll(read(file));
+                    delete(file);
+                }
+                write(file, all);
+            } catch (IOException e) {
+                System.err.println("Error restoring messages for " + recipient + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops the sweeper; stored messages stay on disk for the next start
+     */
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Deletes mailboxes whose newest message has expired. Files are only ever appended
+     * to, so the modification time is the time of the newest message.
+     */
+    private void sweep() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        for (File file : files) {
+            if (file.getName().length() != MAILBOX_NAME_LENGTH) {
+                continue;  // Not a mailbox
+            }
+            if (file.lastModified() < cutoff) {
+                // Lock by file name - it is what fileFor() derives the stripe from
+                synchronized (locks[stripe(file.getName())]) {
+                    if (file.lastModified() < cutoff) {
+                        delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites a mailbox without its expired messages. Must hold the mailbox's lock.
+     */
+    private void compact(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        List<Message> live = read(file);
+        delete(file);
+        write(file, live);
+    }
+
+    /**
+     * Writes messages, oldest first, as a new mailbox file. Must hold the mailbox's lock.
+     */
+    private void write(File file, List<Message> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            buffer.write(encode(message.timestamp, message.sender, message.text));
+        }
+        directory.mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            buffer.writeTo(out);
+        }
+        // Keep the modification time at the newest message for the sweeper
+        file.setLastModified(messages.get(messages.size() - 1).timestamp);
+        storeBytes.addAndGet(buffer.size());
+    }
+
+    /**
+     * Reads the unexpired messages of a mailbox. A truncated last record, left by a
+     * crash in the middle of an append, is ignored.
+     */
+    private List<Message> read(File file) {
+        List<Message> messages = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                long timestamp = in.readLong();
+                String sender = in.readUTF();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                if (timestamp >= cutoff) {
+                    messages.add(new Message(timestamp, sender, new String(text, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (EOFException e) {
+            // End of mailbox
+        } catch (IOException e) {
+            System.err.println("Error reading mailbox " + file.getName() + ": " + e.getMessage());
+        }
+        return messages;
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            storeBytes.addAndGet(-length);
+        }
+    }
+
+    private static byte[] encode(long timestamp, String sender, String text) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(timestamp);
+        out.writeUTF(sender);    // Fails for names over 64 KB
+        out.writeInt(textBytes.length);
+        out.write(textBytes);
+        return buffer.toByteArray();
+    }
+
+    private File fileFor(String user) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(user.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < MAILBOX_NAME_LENGTH / 2; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return new File(directory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private Object lockFor(String user) {
+        return locks[stripe(fileFor(user).getName())];
+    }
+
+    private static int stripe(String fileName) {
+        return Integer.parseInt(fileName.substring(0, 2), 16) % LOCK_STRIPES;
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import client.clientGUI.ChannelTransport;
+import client.clientGUI.ChatClient;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MassDisconnectBenchmark measures how the server copes when many clients go at once.
+ *
+ * It connects N clients to an in-process ChatServer over a shared ChannelTransport and
+ * then runs two scenarios:
+ *   1. Partition - half of the clients drop at the same moment. The remaining clients
+ *      should each receive a single batched "users have left" notice, not one per
+ *      departed user.
+ *   2. Shutdown - ChatServer.stop() on the other half. Every client should receive
+ *      exactly one shutdown notice, and stop() should return well within its deadline.
+ *
+ * Usage: java server.MassDisconnectBenchmark [clients=2000]
+ */
+public class MassDisconnectBenchmark {
+    private static final String HOST = "127.0.0.1";
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port, null);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        AtomicLong departureNotices = new AtomicLong();
+        AtomicLong shutdownNotices = new AtomicLong();
+        AtomicLong disconnects = new AtomicLong();
+        List<ChatClient> clients = new ArrayList<>();
+        try (ChannelTransport transport = new ChannelTransport(2)) {
+            for (int i = 0; i < clientCount; i++) {
+                ChatClient client = new ChatClient(message -> {
+                    if (message.startsWith("SERVER: ") && message.contains("left the chat")) {
+                        departureNotices.incrementAndGet();
+                    } else if (message.equals("SERVER: The server is shutting down")) {
+                        shutdownNotices.incrementAndGet();
+                    }
+                }, error -> disconnects.incrementAndGet(), connected -> { }, transport);
+                client.setCompressionEnabled(false);
+                client.connect(HOST, port, "user" + i);
+                clients.add(client);
+            }
+            Thread.sleep(2000);  // Let joins and user lists settle
+            System.out.printf("Connected %,d clients%n", clientCount);
+
+            // Partition: drop the first half all at once
+            int dropped = clientCount / 2;
+            for (int i = 0; i < dropped; i++) {
+                clients.get(i).disconnect();
+            }
+            int remaining = clientCount - dropped;
+            Thread.sleep(1500);  // Longer than the presence batching window
+            System.out.printf("Partition: %,d clients left; the %,d remaining received %,d departure"
+                + " notices (%.2f each, unbatched would be %,d each)%n",
+                dropped, remaining, departureNotices.get(),
+                (double) departureNotices.get() / remaining, dropped);
+
+            // Shutdown: stop the server with the rest still connected
+            long departuresBeforeStop = departureNotices.get();
+            long start = System.nanoTime();
+            server.stop();
+            long stopMillis = (System.nanoTime() - start) / 1_000_000;
+            Thread.sleep(1000);  // Let the notices reach the clients
+            System.out.printf("Shutdown: stop() took %d ms; %,d of %,d clients received the"
+                + " shutdown notice, %,d departure notices were sent during shutdown%n",
+                stopMillis, shutdownNotices.get(), remaining,
+                departureNotices.get() - departuresBeforeStop);
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
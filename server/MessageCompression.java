@@ -0,0 +1,181 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * MessageCompression holds a reusable deflate/inflate context for large chat messages.
+ *
+ * Clients that send "/caps deflate" after their username may exchange compressed frames:
+ * a header line "/z <compressedLength> <originalLength>" followed by exactly that many
+ * bytes of raw deflate data, with no trailing newline. Both sides prime the compressor
+ * with the same preset dictionary of words common in pasted logs and stack traces, so
+ * even medium-sized messages shrink well.
+ *
+ * Deflater and Inflater instances hold sizeable native buffers, so contexts are pooled
+ * and borrowed for a single message instead of being owned by every connection.
+ */
+class MessageCompression {
+    // Messages shorter than this are never compressed
+    static final int THRESHOLD = 256;
+    // Limits that protect the server from oversized or malicious frames
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    static final String CAPABILITY = "deflate";
+
+    // The client's dictionary, so both sides always prime with the same bytes
+    private static final byte[] DICTIONARY = client.clientGUI.MessageCompression.dictionary();
+
+    private static final int MAX_IDLE_CONTEXTS = 16;
+    private static final ArrayDeque<MessageCompression> idle = new ArrayDeque<>();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] output = new byte[4 * 1024];   // Compressed or decompressed result
+    private int outputLength;                     // Valid bytes in output
+    private final byte[] header = new byte[32];   // "/z <compressed> <original>"
+    private int headerLength;
+
+    /**
+     * Borrows a context from the pool, creating one if none is idle
+     */
+    static MessageCompression acquire() {
+        synchronized (idle) {
+            MessageCompression context = idle.pollFirst();
+            if (context != null) {
+                return context;
+            }
+        }
+        return new MessageCompression();
+    }
+
+    /**
+     * Returns a context to the pool, freeing its native memory if the pool is full
+     */
+    static void release(MessageCompression context) {
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE_CONTEXTS) {
+                idle.addFirst(context);
+                return;
+            }
+        }
+        context.deflater.end();
+        context.inflater.end();
+    }
+
+    /**
+     * Compresses prefix + data into this context's output buffer and builds the frame header
+     *
+     * @return true if the compressed form is smaller than the original
+     */
+    boolean compress(byte[] prefix, byte[] data, int offset, int length) {
+        int original = (prefix != null ? prefix.length : 0) + length;
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        if (prefix != null) {
+            deflater.setInput(prefix);
+            // The prefix stays in the same deflate stream as the message
+            outputLength = deflateInto(0, false);
+        } else {
+            outputLength = 0;
+        }
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        outputLength = deflateInto(outputLength, true);
+        if (outputLength >= original) {
+            return false;
+        }
+        buildHeader(outputLength, original);
+        return true;
+    }
+
+    /**
+     * Inflates a compressed frame into this context's output buffer
+     *
+     * @throws DataFormatException If the data is corrupt or does not match the declared size
+     */
+    void decompress(byte[] data, int length, int originalLength) throws DataFormatException {
+        if (originalLength < 0 || originalLength > MAX_MESSAGE_SIZE) {
+            throw new DataFormatException("Invalid message size " + originalLength);
+        }
+        ensureOutput(originalLength);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, 0, length);
+        outputLength = 0;
+        while (outputLength < originalLength && !inflater.finished()) {
+            int count = inflater.inflate(output, outputLength, originalLength - outputLength);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            outputLength += count;
+        }
+        if (outputLength != originalLength) {
+            throw new DataFormatException("Compressed message is truncated");
+        }
+    }
+
+    byte[] getOutput() {
+        return output;
+    }
+
+    int getOutputLength() {
+        return outputLength;
+    }
+
+    byte[] getHeader() {
+        return header;
+    }
+
+    int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * Runs the deflater until it wants more input, or until the stream is complete
+     *
+     * @return New end of the data in the output buffer
+     */
+    private int deflateInto(int position, boolean untilFinished) {
+        while (untilFinished ? !deflater.finished() : !deflater.needsInput()) {
+            if (position == output.length) {
+                ensureOutput(output.length * 2);
+            }
+            position += deflater.deflate(output, position, output.length - position);
+        }
+        return position;
+    }
+
+    private void ensureOutput(int required) {
+        if (output.length < required) {
+            output = Arrays.copyOf(output, Math.max(required, output.length * 2));
+        }
+    }
+
+    /**
+     * Writes the "/z" header digits without allocating
+     */
+    private void buildHeader(int compressedLength, int originalLength) {
+        header[0] = '/';
+        header[1] = 'z';
+        header[2] = ' ';
+        int position = appendDecimal(3, compressedLength);
+        header[position++] = ' ';
+        headerLength = appendDecimal(position, originalLength);
+    }
+
+    private int appendDecimal(int position, int value) {
+        int digits = 1;
+        for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            header[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+}
@@ -0,0 +1,532 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessageIndex keeps the chat history and a full-text index over it.
+ *
+ * Every relayed message gets a sequence number. The index maps each term (a lowercased
+ * run of letters and digits) to a posting list of the sequence numbers containing it,
+ * and keeps one more posting list per sender. Posting lists are stored as varint-encoded
+ * gaps between sequence numbers, so a common word costs about one byte per message.
+ * Timestamps only grow with the sequence number, which turns a time range into a
+ * sequence range found by binary search.
+ *
+ * Relay threads never index anything themselves: submit() copies the message bytes into
+ * a fixed ring buffer and returns, keeping the byte relay path free of allocation and
+ * locks held for long. A daemon indexer thread drains the ring. If the indexer falls
+ * behind and the ring is full, messages are left out of the history rather than
+ * slowing down the chat.
+ *
+ * The history is bounded by a number of messages and by the bytes of their text. It is
+ * kept in GENERATIONS self-contained generations, each with its own text segments and
+ * posting lists, and a new one is started whenever the newest holds its share of either
+ * limit. Once there are more than GENERATIONS, the oldest is dropped as a whole, so old
+ * messages are evicted without rewriting any posting list, and the history always keeps
+ * at least the newest (GENERATIONS - 1) / GENERATIONS of what the limits allow.
+ */
+class MessageIndex {
+    static final int MAX_RESULTS = 20;
+    // Longer messages are stored and indexed only up to this many bytes
+    static final int MAX_INDEXED_LENGTH = 64 * 1024;
+
+    // Retention of the history, see the class comment
+    static final int DEFAULT_MAX_MESSAGES = 1_000_000;
+    static final long DEFAULT_MAX_TEXT_BYTES = 64L * 1024 * 1024;
+    private static final int GENERATIONS = 4;
+
+    private static final int QUEUE_CAPACITY = 4 * 1024 * 1024;
+    private static final int ENTRY_HEADER = 16;         // sender length, text length, timestamp
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    // Ring buffer between relay threads and the indexer, guarded by queueLock
+    private final Object queueLock = new Object();
+    private final byte[] queue = new byte[QUEUE_CAPACITY];
+    private long queueHead;              // Total bytes consumed by the indexer
+    private long queueTail;              // Total bytes written by relay threads
+    private long lastTimestamp;          // Keeps timestamps in sequence order
+    private long dropped;                // Messages skipped because the ring was full
+    private boolean closed;
+
+    // History and index, guarded by this
+    private final int generationMessages;                      // Messages per generation
+    private final long generationBytes;                        // Text bytes per generation
+    private final ArrayDeque<Generation> generations = new ArrayDeque<>();  // Oldest first
+    private int nextSeq;                                       // Sequence number of the next message
+    private int count;                                         // Messages in the history
+
+    /**
+     * Creates an index with the default retention
+     */
+    MessageIndex() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_TEXT_BYTES);
+    }
+
+    /**
+     * @param maxMessages Most messages kept in the history
+     * @param maxTextBytes Most bytes of message text kept in the history
+     */
+    MessageIndex(int maxMessages, long maxTextBytes) {
+        // Rounded up, so that GENERATIONS full generations hold at least the limit
+        this.generationMessages = (int) Math.max(1, -Math.floorDiv(-(long) maxMessages, GENERATIONS));
+        this.generationBytes = Math.max(1, -Math.floorDiv(-maxTextBytes, GENERATIONS));
+        Thread indexer = new Thread(this::runIndexer, "message-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queues a message for the history. Called on relay threads; copies the bytes and
+     * never blocks on the indexer.
+     */
+    void submit(byte[] sender, int senderLength, byte[] text, int offset, int length) {
+        length = Math.min(length, MAX_INDEXED_LENGTH);
+        int needed = ENTRY_HEADER + senderLength + length;
+        synchronized (queueLock) {
+            if (closed) {
+                return;
+            }
+            if (QUEUE_CAPACITY - (queueTail - queueHead) < needed) {
+                dropped++;
+                return;
+            }
+            lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+            long position = putInt(queueTail, senderLength);
+            position = putInt(position, length);
+            position = putLong(position, lastTimestamp);
+            position = put(position, sender, 0, senderLength);
+            queueTail = put(position, text, offset, length);
+            queueLock.notify();
+        }
+    }
+
+    /**
+     * Stops the indexer thread. Messages still queued are not indexed.
+     */
+    void close() {
+        synchronized (queueLock) {
+            closed = true;
+            queueLock.notify();
+        }
+    }
+
+    /**
+     * @return Number of messages left out because the indexer could not keep up
+     */
+    long getDroppedCount() {
+        synchronized (queueLock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * @return Number of messages in the history
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Finds the most recent messages matching a query
+     *
+     * @param words Terms that must all appear; tokenized like the messages themselves
+     * @param sender Only match messages from this user, or null for any sender
+     * @param from Earliest timestamp in milliseconds, inclusive
+     * @param until Latest timestamp in milliseconds, exclusive
+     * @param limit Maximum number of results to return
+     */
+    synchronized SearchResults search(String words, String sender, long from, long until, int limit) {
+        List<String> queryTerms = tokenize(words);
+
+        // Keep only the newest matches in a small circular buffer
+        int[] newest = new int[Math.max(limit, 1)];
+        Generation[] owners = new Generation[newest.length];
+        int total = 0;
+        for (Generation generation : generations) {
+            total = generation.search(queryTerms, sender, from, until, newest, owners, total);
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < Math.min(total, limit); i++) {
+            int slot = Math.floorMod(total - 1 - i, newest.length);
+            hits.add(owners[slot].hit(newest[slot]));
+        }
+        return new SearchResults(hits, total);
+    }
+
+    /**
+     * Splits text into lowercase terms of letters and digits
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                token.appendCodePoint(Character.toLowerCase(codePoint));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Indexer thread: takes one message at a time off the ring and indexes it
+     */
+    private void runIndexer() {
+        byte[] sender = new byte[256];
+        byte[] text = new byte[1024];
+        while (true) {
+            int senderLength;
+            int length;
+            long timestamp;
+            synchronized (queueLock) {
+                while (queueHead == queueTail && !closed) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                senderLength = getInt(queueHead);
+                length = getInt(queueHead + 4);
+                timestamp = getLong(queueHead + 8);
+                if (sender.length < senderLength) {
+                    sender = new byte[senderLength];
+                }
+                if (text.length < length) {
+                    text = new byte[Math.max(length, text.length * 2)];
+                }
+                long position = get(queueHead + ENTRY_HEADER, sender, senderLength);
+                queueHead = get(position, text, length);
+            }
+            add(new String(sender, 0, senderLength, StandardCharsets.UTF_8), text, length, timestamp);
+        }
+    }
+
+    /**
+     * Appends one message to the history, starting a new generation and dropping the
+     * oldest when the newest is full
+     */
+    private synchronized void add(String sender, byte[] text, int length, long timestamp) {
+        Generation current = generations.peekLast();
+        if (current == null || current.count >= generationMessages
+                || (current.count > 0 && current.textBytes + length > generationBytes)) {
+            current = new Generation(nextSeq);
+            generations.addLast(current);
+            if (generations.size() > GENERATIONS) {
+                count -= generations.removeFirst().count;
+            }
+        }
+        current.add(sender, text, length, timestamp);
+        nextSeq++;
+        count++;
+    }
+
+    // Ring buffer helpers; positions are running totals, wrapped on access
+
+    private long put(long position, byte[] data, int offset, int length) {
+        int start = (int) (position % QUEUE_CAPACITY);
+        int first = Math.min(length, QUEUE_CAPACITY - start);
+        System.arraycopy(data, offset, queue, start, first);
+        System.arraycopy(data, offset + first, queue, 0, length - first);
+        return position + length;
+    }
+
+    private long get(long position, byte[] destination, int length) {
+        int start = (int) (position % QUEUE_CAPACITY);
+        int first = Math.min(length, QUEUE_CAPACITY - start);
+        System.arraycopy(queue, start, destination, 0, first);
+        System.arraycopy(queue, 0, destination, first, length - first);
+        return position + length;
+    }
+
+    private long putInt(long position, int value) {
+        for (int i = 0; i < 4; i++) {
+            queue[(int) ((position + i) % QUEUE_CAPACITY)] = (byte) (value >>> (24 - 8 * i));
+        }
+        return position + 4;
+    }
+
+    private long putLong(long position, long value) {
+        putInt(position, (int) (value >>> 32));
+        return putInt(position + 4, (int) value);
+    }
+
+    private int getInt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (queue[(int) ((position + i) % QUEUE_CAPACITY)] & 0xFF);
+        }
+        return value;
+    }
+
+    private long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A contiguous run of the history with its own index. Only added to while it is
+     * the newest; guarded by the MessageIndex.
+     */
+    private static final class Generation {
+        private final int base;                                     // Sequence number of local message 0
+        private final List<byte[]> segments = new ArrayList<>();   // Message text, UTF-8
+        private int segmentUsed = SEGMENT_SIZE;                     // Forces the first segment
+        private int[] segmentIndex = new int[1024];
+        private int[] segmentOffset = new int[1024];
+        private int[] textLength = new int[1024];
+        private int[] senderOf = new int[1024];
+        private long[] timestamps = new long[1024];
+        private int count;                                          // Messages in this generation
+        private long textBytes;                                     // Bytes of their text
+        private final Map<String, PostingList> terms = new HashMap<>();
+        private final Map<String, Integer> senderIds = new HashMap<>();
+        private final List<String> senderNames = new ArrayList<>();
+        private final List<PostingList> senderPostings = new ArrayList<>();
+
+        Generation(int base) {
+            this.base = base;
+        }
+
+        /**
+         * Appends one message and indexes its terms
+         */
+        void add(String sender, byte[] text, int length, long timestamp) {
+            int seq = count;
+            if (seq == timestamps.length) {
+                int capacity = seq * 2;
+                segmentIndex = Arrays.copyOf(segmentIndex, capacity);
+                segmentOffset = Arrays.copyOf(segmentOffset, capacity);
+                textLength = Arrays.copyOf(textLength, capacity);
+                senderOf = Arrays.copyOf(senderOf, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+            }
+            if (segmentUsed + length > SEGMENT_SIZE) {
+                segments.add(new byte[Math.max(SEGMENT_SIZE, length)]);
+                segmentUsed = 0;
+            }
+            System.arraycopy(text, 0, segments.get(segments.size() - 1), segmentUsed, length);
+            segmentIndex[seq] = segments.size() - 1;
+            segmentOffset[seq] = segmentUsed;
+            textLength[seq] = length;
+            segmentUsed += length;
+            textBytes += length;
+            timestamps[seq] = timestamp;
+
+            Integer senderId = senderIds.get(sender);
+            if (senderId == null) {
+                senderId = senderNames.size();
+                senderIds.put(sender, senderId);
+                senderNames.add(sender);
+                senderPostings.add(new PostingList());
+            }
+            senderOf[seq] = senderId;
+            senderPostings.get(senderId).add(seq);
+
+            for (String term : tokenize(new String(text, 0, length, StandardCharsets.UTF_8))) {
+                terms.computeIfAbsent(term, key -> new PostingList()).add(seq);
+            }
+            count++;
+        }
+
+        /**
+         * Adds this generation's matches, oldest first, to the circular buffer of newest
+         * matches shared by all generations
+         *
+         * @return The number of matches so far, including this generation's
+         */
+        int search(List<String> queryTerms, String sender, long from, long until,
+                   int[] newest, Generation[] owners, int total) {
+            int first = firstAtOrAfter(from);
+            int end = firstAtOrAfter(until);
+            List<PostingList> lists = new ArrayList<>();
+            for (String term : queryTerms) {
+                PostingList postings = terms.get(term);
+                if (postings == null) {
+                    return total;
+                }
+                lists.add(postings);
+            }
+            if (sender != null) {
+                Integer id = senderIds.get(sender);
+                if (id == null) {
+                    return total;
+                }
+                lists.add(senderPostings.get(id));
+            }
+
+            if (lists.isEmpty()) {
+                for (int seq = first; seq < end; seq++) {
+                    owners[total % newest.length] = this;
+                    newest[total++ % newest.length] = seq;
+                }
+                return total;
+            }
+            // Drive the intersection from the shortest list
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+            PostingList.Cursor[] cursors = new PostingList.Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = lists.get(i).cursor();
+            }
+            candidates:
+            for (int seq = cursors[0].next(); seq >= 0 && seq < end; seq = cursors[0].next()) {
+                if (seq < first) {
+                    continue;
+                }
+                for (int i = 1; i < cursors.length; i++) {
+                    int other = cursors[i].advanceTo(seq);
+                    if (other < 0) {
+                        break candidates;
+                    }
+                    if (other != seq) {
+                        continue candidates;
+                    }
+                }
+                owners[total % newest.length] = this;
+                newest[total++ % newest.length] = seq;
+            }
+            return total;
+        }
+
+        Hit hit(int seq) {
+            String text = new String(segments.get(segmentIndex[seq]), segmentOffset[seq], textLength[seq],
+                StandardCharsets.UTF_8);
+            return new Hit(base + seq, timestamps[seq], senderNames.get(senderOf[seq]), text);
+        }
+
+        /**
+         * @return The first local sequence number whose timestamp is at least time
+         */
+        private int firstAtOrAfter(long time) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * One message returned by a search
+     */
+    static final class Hit {
+        final int seq;
+        final long timestamp;
+        final String sender;
+        final String text;
+
+        Hit(int seq, long timestamp, String sender, String text) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The newest matches of a search, plus how many matched in total
+     */
+    static final class SearchResults {
+        final List<Hit> hits;
+        final int total;
+
+        SearchResults(List<Hit> hits, int total) {
+            this.hits = hits;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Sorted sequence numbers stored as varint-encoded gaps
+     */
+    private static final class PostingList {
+        private byte[] data = new byte[8];
+        private int length;
+        private int last = -1;
+        private int size;
+
+        void add(int seq) {
+            if (seq == last) {
+                return;  // Term repeated within one message
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int gap = seq - last;
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = seq;
+            size++;
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        /**
+         * Decodes the list front to back
+         */
+        final class Cursor {
+            private int position;
+            private int current = -1;
+
+            /**
+             * @return The next sequence number, or -1 at the end
+             */
+            int next() {
+                if (position >= length) {
+                    return -1;
+                }
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                current += gap;
+                return current;
+            }
+
+            /**
+             * @return The first sequence number at or after target, or -1 at the end
+             */
+            int advanceTo(int target) {
+                int seq = current;
+                while (seq < target) {
+                    seq = next();
+                    if (seq < 0) {
+                        return -1;
+                    }
+                }
+                return seq;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OutboundLanes is the write lock of one connection, split into a control lane and a
+ * bulk lane.
+ *
+ * Frames are written directly by the thread that produces them, so during a chat flood
+ * dozens of relay threads can be waiting to write to the same client. Control frames
+ * (presence updates, shutdown notices, protocol replies, file credit) must not wait
+ * behind all of them, or clients see stale presence and stalled transfers. A waiting
+ * control writer therefore always goes before waiting bulk writers (chat lines and file
+ * chunks). To keep chat from being starved by a storm of control frames, a waiting bulk
+ * writer gets the next turn after at most MAX_CONTROL_BURST control frames in a row.
+ *
+ * The lock is reentrant, so a thread holding one lane may write frames of either kind.
+ * Nothing is allocated on acquire or release, keeping the relay path garbage-free.
+ */
+public class OutboundLanes {
+    public static final int CONTROL = 0;
+    public static final int BULK = 1;
+    private static final int MAX_CONTROL_BURST = 8;   // Control frames before a waiting bulk writer goes
+
+    private final Stats stats;       // Shared wait-time statistics, or null
+    private Thread owner;            // Thread currently writing
+    private int holds;               // Reentrant acquisitions by the owner
+    private int waitingControl;      // Threads waiting in each lane
+    private int waitingBulk;
+    private int controlBurst;        // Control frames granted while bulk writers waited
+    private long grants;             // Turns handed out so far
+
+    /**
+     * @param stats Where to record how long writers wait in each lane, or null
+     */
+    public OutboundLanes(Stats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Waits for this thread's turn to write in the given lane
+     *
+     * @return false if the thread was interrupted while waiting; the lock is not held
+     */
+    public synchronized boolean acquire(int lane) {
+        Thread current = Thread.currentThread();
+        if (owner == current) {
+            holds++;
+            return true;
+        }
+        long start = System.nanoTime();
+        if (lane == CONTROL) {
+            waitingControl++;
+        } else {
+            waitingBulk++;
+        }
+        try {
+            while (!mayProceed(lane)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            current.interrupt();
+            notifyAll();  // Writers held back for this one may now go
+            return false;
+        } finally {
+            if (lane == CONTROL) {
+                waitingControl--;
+            } else {
+                waitingBulk--;
+            }
+        }
+        owner = current;
+        holds = 1;
+        grants++;
+        if (lane == CONTROL) {
+            controlBurst = waitingBulk > 0 ? controlBurst + 1 : 0;
+        } else {
+            controlBurst = 0;
+        }
+        if (stats != null) {
+            stats.record(lane, System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the current write, handing the connection to the next writer
+     */
+    public synchronized void release() {
+        if (--holds == 0) {
+            owner = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the writers waiting now have had their turn. Handing over the lock is
+     * not fair, so a thread writing a long run of frames calls this between them to let
+     * other writers in. Must be called without holding the lock.
+     *
+     * @return false if the thread was interrupted while waiting
+     */
+    public synchronized boolean yieldTurn() {
+        long target = grants + waitingControl + waitingBulk;
+        try {
+            while (grants < target && waitingControl + waitingBulk > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean mayProceed(int lane) {
+        if (owner != null) {
+            return false;
+        }
+        boolean bulkOwed = waitingBulk > 0 && controlBurst >= MAX_CONTROL_BURST;
+        return lane == CONTROL ? !bulkOwed : waitingControl == 0 || bulkOwed;
+    }
+
+    /**
+     * How long writers waited for their turn in each lane, summed over all connections
+     */
+    public static class Stats {
+        private final LongAdder[] frames = {new LongAdder(), new LongAdder()};
+        private final LongAdder[] waitNanos = {new LongAdder(), new LongAdder()};
+        private final LongAccumulator[] maxWaitNanos = {
+            new LongAccumulator(Math::max, 0), new LongAccumulator(Math::max, 0)};
+
+        void record(int lane, long nanos) {
+            frames[lane].increment();
+            waitNanos[lane].add(nanos);
+            maxWaitNanos[lane].accumulate(nanos);
+        }
+
+        /**
+         * @return Frames written in the lane since the last reset
+         */
+        public long getFrames(int lane) {
+            return frames[lane].sum();
+        }
+
+        /**
+         * @return Average time a writer waited for its turn, in microseconds
+         */
+        public double getAverageWaitMicros(int lane) {
+            long count = frames[lane].sum();
+            return count == 0 ? 0 : waitNanos[lane].sum() / 1000.0 / count;
+        }
+
+        /**
+         * @return Longest time a writer waited for its turn, in microseconds
+         */
+        public double getMaxWaitMicros(int lane) {
+            return maxWaitNanos[lane].get() / 1000.0;
+        }
+
+        public void reset() {
+            for (int lane = 0; lane < 2; lane++) {
+                frames[lane].reset();
+                waitNanos[lane].reset();
+                maxWaitNanos[lane].reset();
+            }
+        }
+    }
+}
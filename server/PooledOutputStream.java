@@ -0,0 +1,90 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * PooledOutputStream buffers writes like BufferedOutputStream, but only holds a buffer
+ * while there is unflushed data. The buffer is borrowed from a BufferPool on the first
+ * write and returned by flush(), so an idle connection costs no buffer memory.
+ *
+ * ChatServer writes whole frames and flushes after each one, so a buffer is lent for
+ * the length of one frame write. Writes at least as large as a pooled buffer bypass it.
+ * Like BufferedOutputStream it is not thread-safe; ChatServer serializes writers
+ * through OutboundLanes.
+ */
+class PooledOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final BufferPool pool;
+    private byte[] buffer;      // Borrowed between the first write and flush(), otherwise null
+    private int count;          // Bytes of unwritten data in buffer
+
+    PooledOutputStream(OutputStream out, BufferPool pool) {
+        this.out = out;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        } else if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (length >= pool.getBufferSize()) {
+            writeBuffer();
+            out.write(data, offset, length);
+            return;
+        }
+        if (buffer == null) {
+            buffer = pool.acquire();
+        } else if (length > buffer.length - count) {
+            writeBuffer();
+        }
+        System.arraycopy(data, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Writes out the buffered data and gives the buffer back to the pool
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            writeBuffer();
+        } finally {
+            returnBuffer();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            int length = count;
+            count = 0;
+            out.write(buffer, 0, length);
+        }
+    }
+
+    private void returnBuffer() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * PresenceBatcher collects users joining and leaving the chat and reports them in batches.
+ *
+ * Announcing every presence change separately costs one write per connected client, so
+ * a network partition that drops N clients at once - and the reconnect storm after it -
+ * turns into O(N^2) writes. Instead, the first change starts a short window; every change
+ * within that window joins the same batch, and the batch is handed to the flush callback
+ * once on a background thread.
+ */
+public class PresenceBatcher {
+    private final long windowMillis;                          // How long a batch stays open
+    private final BiConsumer<List<String>, List<String>> flush;  // Receives joined and left names
+    private final ScheduledExecutorService timer;
+    private List<String> joined = new ArrayList<>();          // Names in the open batch
+    private List<String> left = new ArrayList<>();
+    private boolean scheduled;                                // A flush is already queued
+    private boolean closed;
+
+    /**
+     * @param windowMillis How long to wait for more changes before announcing them
+     * @param flush Callback invoked with the names that joined and left in each batch
+     */
+    public PresenceBatcher(long windowMillis, BiConsumer<List<String>, List<String>> flush) {
+        this.windowMillis = windowMillis;
+        this.flush = flush;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records that a user joined; the announcement follows within the batch window
+     */
+    public synchronized void joined(String name) {
+        if (!closed) {
+            joined.add(name);
+            schedule();
+        }
+    }
+
+    /**
+     * Records that a user left; the announcement follows within the batch window
+     */
+    public synchronized void departed(String name) {
+        if (!closed) {
+            left.add(name);
+            schedule();
+        }
+    }
+
+    /**
+     * Drops any open batch and stops the background thread
+     */
+    public synchronized void close() {
+        closed = true;
+        joined = new ArrayList<>();
+        left = new ArrayList<>();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Formats part of a batch as a single server notice
+     *
+     * @param action "joined" or "left"
+     */
+    public static String describe(List<String> names, String action) {
+        if (names.size() == 1) {
+            return "SERVER: " + names.get(0) + " has " + action + " the chat";
+        }
+        return "SERVER: " + names.size() + " users have " + action + " the chat: " + String.join(", ", names);
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(this::flushPending, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPending() {
+        List<String> joinedBatch;
+        List<String> leftBatch;
+        synchronized (this) {
+            joinedBatch = joined;
+            leftBatch = left;
+            joined = new ArrayList<>();
+            left = new ArrayList<>();
+            scheduled = false;
+            if (closed) {
+                return;
+            }
+        }
+        // Called outside the lock so slow writes never hold up new changes
+        flush.accept(joinedBatch, leftBatch);
+    }
+}
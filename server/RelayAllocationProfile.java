@@ -0,0 +1,160 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RelayAllocationProfile measures how much garbage the server creates per relayed message.
+ *
+ * It starts a ChatServer in this process, connects one sender and several receivers over
+ * raw sockets (the load generators themselves reuse fixed buffers), relays a batch of
+ * messages and reads the per-thread allocation counters of every thread in the JVM.
+ * Dividing the allocated bytes by the number of delivered messages gives the garbage
+ * cost per relayed message; on the byte relay path this should be close to zero.
+ * The history indexer thread is left out: storing and indexing messages necessarily
+ * allocates, but it happens off the relay path.
+ *
+ * Usage: java server.RelayAllocationProfile [messages] [receivers]
+ */
+public class RelayAllocationProfile {
+    private static final String HOST = "127.0.0.1";
+    private static final int WARMUP_MESSAGES = 50_000;
+    private static final String INDEXER_THREAD = "message-indexer";
+    private static long indexerThreadId = -1;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int receiverCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM does not report per-thread allocation");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port, null);
+        Thread serverThread = new Thread(server::start, "profile-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(INDEXER_THREAD)) {
+                indexerThreadId = thread.getId();
+            }
+        }
+
+        Receiver[] receivers = new Receiver[receiverCount];
+        for (int i = 0; i < receiverCount; i++) {
+            receivers[i] = new Receiver(new Socket(HOST, port), "receiver-" + i);
+            receivers[i].start();
+        }
+        Socket sender = new Socket(HOST, port);
+        sender.setTcpNoDelay(true);
+        OutputStream senderOut = sender.getOutputStream();
+        senderOut.write("sender\n".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(500);  // Let join and user-list notices settle
+
+        byte[] message = "the quick brown fox jumps over the lazy dog 0123456789\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+        // Warm up so JIT compilation and class loading are not counted
+        relay(senderOut, message, WARMUP_MESSAGES, receivers);
+
+        long before = totalAllocatedBytes(threads);
+        long start = System.nanoTime();
+        relay(senderOut, message, messages, receivers);
+        long elapsed = System.nanoTime() - start;
+        long allocated = totalAllocatedBytes(threads) - before;
+
+        long delivered = (long) messages * receiverCount;
+        System.out.printf("Relayed %,d messages to %d receivers (%,d deliveries) in %d ms%n",
+            messages, receiverCount, delivered, elapsed / 1_000_000);
+        System.out.printf("Allocated %,d bytes in total: %.2f bytes per message, %.3f per delivery%n",
+            allocated, (double) allocated / messages, (double) allocated / delivered);
+
+        sender.close();
+        server.stop();
+        System.exit(0);
+    }
+
+    /**
+     * Sends a batch of messages and waits until every receiver has seen all of them
+     */
+    private static void relay(OutputStream out, byte[] message, int count, Receiver[] receivers)
+            throws IOException, InterruptedException {
+        long[] targets = new long[receivers.length];
+        for (int i = 0; i < receivers.length; i++) {
+            targets[i] = receivers[i].lines.get() + count;
+        }
+        for (int i = 0; i < count; i++) {
+            out.write(message);
+        }
+        out.flush();
+        for (int i = 0; i < receivers.length; i++) {
+            while (receivers[i].lines.get() < targets[i]) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static long totalAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] > 0 && ids[i] != indexerThreadId) {
+                total += allocated[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Counts newline-terminated lines using a single reusable buffer
+     */
+    private static class Receiver extends Thread {
+        private final Socket socket;
+        private final AtomicLong lines = new AtomicLong();
+
+        Receiver(Socket socket, String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.socket = socket;
+            socket.getOutputStream().write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = socket.getInputStream()) {
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    int newlines = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (buffer[i] == '\n') {
+                            newlines++;
+                        }
+                    }
+                    lines.addAndGet(newlines);
+                }
+            } catch (IOException e) {
+                // Server closed the connection
+            }
+        }
+    }
+}
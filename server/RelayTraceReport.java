@@ -0,0 +1,132 @@
+package server;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * RelayTraceReport summarises the chat events in a flight recording, to show which
+ * stage of the relay path a slow message spent its time in.
+ *
+ * For each stage of the sampled chat.MessageRelay events it prints the percentiles of
+ * the time spent there. Lane wait, write and flush are shown per recipient; the slowest
+ * recipient and the total, from the read that completed the message to the last
+ * recipient's flush, are per message. Connections and disconnections are counted,
+ * and the slowest messages are listed with their breakdown.
+ *
+ * Usage: java server.RelayTraceReport <recording.jfr> [slowest=5]
+ */
+public class RelayTraceReport {
+    private static final String[] STAGES = {
+        "Read buffer wait", "Decode", "Enqueue", "Fan-out",
+        "Lane wait", "Write", "Flush", "Slowest recipient", "Total"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java server.RelayTraceReport <recording.jfr> [slowest=5]");
+            System.exit(2);
+        }
+        Path recording = Paths.get(args[0]);
+        int slowestCount = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<long[]> relays = new ArrayList<>();           // Stage times in STAGES order
+        List<RecordedEvent> relayEvents = new ArrayList<>();
+        long connects = 0;
+        long disconnects = 0;
+        long recipients = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            switch (event.getEventType().getName()) {
+                case "chat.MessageRelay":
+                    relays.add(stages(event));
+                    relayEvents.add(event);
+                    recipients += event.getInt("recipients");
+                    break;
+                case "chat.ClientConnected":
+                    connects++;
+                    break;
+                case "chat.ClientDisconnected":
+                    disconnects++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        System.out.printf("%s: %,d sampled messages to %,d recipients, %,d connects, %,d disconnects%n",
+            recording.getFileName(), relays.size(), recipients, connects, disconnects);
+        if (relays.isEmpty()) {
+            System.out.println("No chat.MessageRelay events - was the recording started while clients were chatting?");
+            return;
+        }
+
+        System.out.printf("%n%-18s %10s %10s %10s %10s %10s%n", "Stage (us)", "mean", "p50", "p90", "p99", "max");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long[] values = new long[relays.size()];
+            long total = 0;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = relays.get(i)[stage];
+                total += values[i];
+            }
+            Arrays.sort(values);
+            System.out.printf("%-18s %10.1f %10.1f %10.1f %10.1f %10.1f%n", STAGES[stage],
+                total / 1e3 / values.length,
+                percentile(values, 0.50) / 1e3,
+                percentile(values, 0.90) / 1e3,
+                percentile(values, 0.99) / 1e3,
+                percentile(values, 1.0) / 1e3);
+        }
+
+        Integer[] order = new Integer[relays.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int total = STAGES.length - 1;
+        Arrays.sort(order, (a, b) -> Long.compare(relays.get(b)[total], relays.get(a)[total]));
+        System.out.printf("%nSlowest messages (us):%n");
+        for (int i = 0; i < Math.min(slowestCount, order.length); i++) {
+            RecordedEvent event = relayEvents.get(order[i]);
+            long[] stages = relays.get(order[i]);
+            StringBuilder line = new StringBuilder();
+            for (int stage = 0; stage < STAGES.length - 1; stage++) {
+                line.append(String.format(Locale.ROOT, " %s %.1f,", STAGES[stage].toLowerCase(Locale.ROOT),
+                    stages[stage] / 1e3));
+            }
+            line.setLength(line.length() - 1);
+            System.out.printf("  %.1f at %s from %s, %d bytes to %d recipients:%s%n",
+                stages[total] / 1e3, event.getStartTime(), event.getString("sender"),
+                event.getInt("length"), event.getInt("recipients"), line);
+        }
+    }
+
+    /**
+     * @return The event's stage times in nanoseconds, in STAGES order
+     */
+    private static long[] stages(RecordedEvent event) {
+        int recipients = Math.max(1, event.getInt("recipients"));
+        long buffered = nanos(event, "bufferedNanos");
+        return new long[] {
+            buffered,
+            nanos(event, "decodeNanos"),
+            nanos(event, "enqueueNanos"),
+            nanos(event, "fanOutNanos"),
+            nanos(event, "laneWaitNanos") / recipients,
+            nanos(event, "writeNanos") / recipients,
+            nanos(event, "flushNanos") / recipients,
+            nanos(event, "slowestRecipientNanos"),
+            buffered + event.getDuration().toNanos()
+        };
+    }
+
+    private static long nanos(RecordedEvent event, String field) {
+        return event.getDuration(field).toNanos();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
@@ -0,0 +1,150 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * RelayTracing holds the JDK Flight Recorder events that show where a relayed message
+ * spends its time, and the sampling switch that keeps them off the hot path.
+ *
+ * One in every SAMPLE_EVERY chat messages per connection is traced, and only while a
+ * recording has the chat.MessageRelay event enabled. Otherwise the relay path does no
+ * more than count frames and test a field, and no event object is ever created, so
+ * RelayAllocationProfile still sees an allocation-free relay. The sampling rate can be
+ * changed with -Dchat.trace.sampleEvery=N (1 traces every message).
+ *
+ * Record with, for example:
+ *   java -XX:StartFlightRecording=filename=relay.jfr server.ChatServer
+ * and summarise the recording with RelayTraceReport.
+ */
+final class RelayTracing {
+    static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("chat.trace.sampleEvery", 64));
+    private static final EventType RELAY_TYPE = EventType.getEventType(MessageRelay.class);
+
+    private RelayTracing() {
+    }
+
+    /**
+     * @return true while a recording wants message relay events
+     */
+    static boolean relayEnabled() {
+        return RELAY_TYPE.isEnabled();
+    }
+
+    /**
+     * One sampled chat message, from the moment it was complete in the sender's read
+     * buffer until it had been written to every recipient. Per-recipient stages are
+     * summed over all recipients.
+     */
+    @Name("chat.MessageRelay")
+    @Label("Message Relay")
+    @Category({"Chat Server", "Relay"})
+    @Description("Where a sampled chat message spent its time between being read and being written to every recipient")
+    @StackTrace(false)
+    static class MessageRelay extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("Compressed")
+        @Description("The message arrived as a /z compressed frame")
+        boolean compressed;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Read Buffer Wait")
+        @Description("Time the complete frame waited in the read buffer behind earlier frames")
+        @Timespan
+        long bufferedNanos;
+
+        @Label("Decode")
+        @Description("Framing, command checks and decompression")
+        @Timespan
+        long decodeNanos;
+
+        @Label("Enqueue")
+        @Description("Hand-off of the message to the history index")
+        @Timespan
+        long enqueueNanos;
+
+        @Label("Fan-out")
+        @Description("Whole broadcast to all recipients, including compression for them")
+        @Timespan
+        long fanOutNanos;
+
+        @Label("Lane Wait")
+        @Description("Time spent waiting for each recipient's outbound lane, summed")
+        @Timespan
+        long laneWaitNanos;
+
+        @Label("Write")
+        @Description("Time spent writing into each recipient's stream, summed")
+        @Timespan
+        long writeNanos;
+
+        @Label("Flush")
+        @Description("Time spent flushing each recipient's stream to the socket, summed")
+        @Timespan
+        long flushNanos;
+
+        @Label("Slowest Recipient")
+        @Description("Longest lane wait, write and flush for a single recipient")
+        @Timespan
+        long slowestRecipientNanos;
+
+        /**
+         * Adds one recipient's stages
+         */
+        void recipient(long laneWait, long write, long flush) {
+            recipients++;
+            laneWaitNanos += laneWait;
+            writeNanos += write;
+            flushNanos += flush;
+            slowestRecipientNanos = Math.max(slowestRecipientNanos, laneWait + write + flush);
+        }
+    }
+
+    @Name("chat.ClientConnected")
+    @Label("Client Connected")
+    @Category({"Chat Server", "Connections"})
+    @Description("A client sent its username; the duration covers the connection setup")
+    @StackTrace(false)
+    static class ClientConnected extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Address")
+        String address;
+
+        @Label("TLS")
+        boolean tls;
+    }
+
+    @Name("chat.ClientDisconnected")
+    @Label("Client Disconnected")
+    @Category({"Chat Server", "Connections"})
+    @Description("A client's connection was closed")
+    @StackTrace(false)
+    static class ClientDisconnected extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Address")
+        String address;
+
+        @Label("Connected For")
+        @Timespan(Timespan.MILLISECONDS)
+        long connectedMillis;
+    }
+}
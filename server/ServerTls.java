@@ -0,0 +1,68 @@
+package server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * ServerTls builds the SSLContext used to accept encrypted client connections.
+ *
+ * The context owns the server-side session cache. Clients reconnecting within the
+ * session timeout resume their previous session (by session ID on TLS 1.2, by
+ * session ticket on TLS 1.3) and skip the expensive key exchange.
+ */
+public final class ServerTls {
+    // Session cache settings - sized for a full house of reconnecting clients
+    public static final int SESSION_CACHE_SIZE = 20_000;
+    public static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+    private ServerTls() {
+    }
+
+    /**
+     * Creates a server context from a key store holding the server's private key
+     *
+     * @param keyStorePath Path of a PKCS12 or JKS key store
+     * @param password Password of the key store and of the key entry
+     * @return A TLS context with a configured session cache
+     * @throws IOException If the key store cannot be read or the context cannot be built
+     */
+    public static SSLContext createContext(String keyStorePath, char[] password) throws IOException {
+        if (keyStorePath == null) {
+            throw new IOException("No key store configured (set javax.net.ssl.keyStore)");
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            try (InputStream in = new FileInputStream(keyStorePath)) {
+                keyStore.load(in, password);
+            }
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not initialise TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a server context from the standard javax.net.ssl.keyStore and
+     * javax.net.ssl.keyStorePassword system properties
+     */
+    public static SSLContext createContextFromSystemProperties() throws IOException {
+        String password = System.getProperty("javax.net.ssl.keyStorePassword");
+        return createContext(System.getProperty("javax.net.ssl.keyStore"),
+            password != null ? password.toCharArray() : null);
+    }
+}
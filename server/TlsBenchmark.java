@@ -0,0 +1,243 @@
+package server;
+
+import client.clientGUI.ChannelTransport;
+import client.clientGUI.ChatClient;
+import client.clientGUI.ClientTls;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * TlsBenchmark compares full and resumed TLS handshakes, and the message throughput
+ * of a plaintext ChatServer against a TLS one, on the local machine.
+ *
+ * It needs a key store with a self-signed certificate, for example:
+ *   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365
+ *           -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1
+ *           -storetype PKCS12 -keystore chat-tls.p12 -storepass changeit
+ *
+ * Usage: java server.TlsBenchmark chat-tls.p12 changeit [handshakes] [messages]
+ */
+public class TlsBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final int MESSAGE_SIZE = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java server.TlsBenchmark <keystore> <password> [handshakes] [messages]");
+            System.exit(2);
+        }
+        String keyStore = args[0];
+        char[] password = args[1].toCharArray();
+        int handshakes = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+
+        SSLContext serverContext = ServerTls.createContext(keyStore, password);
+
+        System.out.println("== Handshakes (" + handshakes + " connections) ==");
+        benchmarkHandshakes(serverContext, keyStore, password, handshakes);
+
+        System.out.println("== Throughput (" + messages + " messages of " + MESSAGE_SIZE + " bytes) ==");
+        double plain = benchmarkThroughput(null, null, messages);
+        double encrypted = benchmarkThroughput(serverContext,
+            ClientTls.createContext(keyStore, password), messages);
+        System.out.printf("TLS throughput is %.1f%% of plaintext%n", 100.0 * encrypted / plain);
+        System.exit(0);
+    }
+
+    /**
+     * Times handshakes against a bare TLS acceptor built from the server context, first
+     * with a fresh client context per connection (full handshake) and then with one shared
+     * context (resumed handshake)
+     */
+    private static void benchmarkHandshakes(SSLContext serverContext, String keyStore,
+                                            char[] password, int count) throws Exception {
+        try (SSLServerSocket acceptor = (SSLServerSocket)
+                serverContext.getServerSocketFactory().createServerSocket(0)) {
+            Thread acceptThread = new Thread(() -> acceptHandshakes(acceptor), "handshake-acceptor");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+            int port = acceptor.getLocalPort();
+
+            // Contexts are built up front so only the handshake itself is timed
+            SSLContext[] fresh = new SSLContext[count];
+            for (int i = 0; i < count; i++) {
+                fresh[i] = ClientTls.createContext(keyStore, password);
+            }
+            SSLContext shared = ClientTls.createContext(keyStore, password);
+            handshake(shared, port);  // Warm-up connection seeds the session cache
+            handshake(fresh[0], port);
+
+            long[] full = new long[count];
+            long[] resumed = new long[count];
+            int resumedCount = 0;
+            long[] elapsed = new long[1];
+            for (int i = 0; i < count; i++) {
+                full[i] = handshake(fresh[i], port);
+                if (handshake(shared, port, elapsed)) {
+                    resumedCount++;
+                }
+                resumed[i] = elapsed[0];
+            }
+            report("full", full);
+            report("resumed", resumed);
+            System.out.printf("%d of %d shared-context handshakes resumed a cached session%n",
+                resumedCount, count);
+        }
+    }
+
+    /**
+     * Completes one handshake and reads the server's greeting byte
+     *
+     * @return Elapsed nanoseconds
+     */
+    private static long handshake(SSLContext context, int port) throws IOException {
+        long[] elapsed = new long[1];
+        handshake(context, port, elapsed);
+        return elapsed[0];
+    }
+
+    /**
+     * Connects, completes the handshake and reads the server's greeting byte.
+     * Closing the socket is not part of the timed section.
+     *
+     * @param elapsed Receives the elapsed nanoseconds in its first element
+     * @return true if the connection reused a session that was created earlier
+     */
+    private static boolean handshake(SSLContext context, int port, long[] elapsed) throws IOException {
+        long before = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(HOST, port)) {
+            socket.setTcpNoDelay(true);
+            socket.startHandshake();
+            // Reading lets TLS 1.3 clients receive the session ticket used for resumption
+            socket.getInputStream().read();
+            elapsed[0] = System.nanoTime() - start;
+            return socket.getSession().getCreationTime() < before;
+        }
+    }
+
+    private static void acceptHandshakes(ServerSocket acceptor) {
+        ExecutorService workers = Executors.newCachedThreadPool();
+        while (!acceptor.isClosed()) {
+            try {
+                Socket socket = acceptor.accept();
+                workers.execute(() -> greet(socket));
+            } catch (IOException e) {
+                // Acceptor closed
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    private static void greet(Socket socket) {
+        try (Socket client = socket) {
+            client.setTcpNoDelay(true);
+            ((SSLSocket) client).startHandshake();
+            OutputStream out = client.getOutputStream();
+            out.write('\n');
+            out.flush();
+            InputStream in = client.getInputStream();
+            in.read();  // Wait for the client to close
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Starts a ChatServer, connects a sender and a receiver over a ChannelTransport and
+     * measures how quickly relayed messages arrive
+     *
+     * @return Messages per second
+     */
+    private static double benchmarkThroughput(SSLContext serverContext, SSLContext clientContext,
+                                              int messages) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer server = new ChatServer(port, serverContext);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitUntilRunning(server);
+
+        AtomicLong received = new AtomicLong();
+        double rate;
+        CountDownLatch senderJoined = new CountDownLatch(1);
+        CountDownLatch allReceived = new CountDownLatch(1);
+
+        try (ChannelTransport transport = new ChannelTransport(1)) {
+            ChatClient receiver = new ChatClient(message -> {
+                if (message.startsWith("sender: ")) {
+                    if (received.incrementAndGet() == messages) {
+                        allReceived.countDown();
+                    }
+                } else if (message.startsWith("Connected users: ")
+                        && Arrays.asList(message.substring(17).split(", ")).contains("sender")) {
+                    // Joins are batched, so look for the sender in the user list rather
+                    // than for its own join notice
+                    senderJoined.countDown();
+                }
+            }, System.err::println, connected -> { }, transport);
+            ChatClient sender = new ChatClient(message -> { }, System.err::println,
+                connected -> { }, transport);
+            receiver.useTls(clientContext);
+            sender.useTls(clientContext);
+
+            receiver.connect("localhost", port, "receiver");
+            Thread.sleep(200);  // Let the receiver register before the sender joins
+            sender.connect("localhost", port, "sender");
+            if (!senderJoined.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("The server never announced that the sender joined");
+            }
+
+            char[] filler = new char[MESSAGE_SIZE];
+            Arrays.fill(filler, 'x');
+            String payload = new String(filler);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sender.sendMessage(payload);
+            }
+            boolean complete = allReceived.await(5, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            rate = received.get() / seconds;
+            System.out.printf("%-9s %,10.0f msg/s  %7.1f MB/s%s%n",
+                clientContext != null ? "tls" : "plaintext", rate,
+                rate * MESSAGE_SIZE / (1024 * 1024), complete ? "" : "  (incomplete)");
+
+            sender.disconnect();
+            receiver.disconnect();
+        } finally {
+            server.stop();
+        }
+        return rate;
+    }
+
+    private static void waitUntilRunning(ChatServer server) throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && !server.isRunning(); attempt++) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static void report(String label, long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        System.out.printf("%-9s mean %.2f ms  p50 %.2f ms  p99 %.2f ms%n", label, mean,
+            sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6);
+    }
+}
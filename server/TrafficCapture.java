@@ -0,0 +1,193 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TrafficCapture records the shape of the server's traffic to a compact binary trace
+ * that TrafficReplay can play back against another build.
+ *
+ * Only the shape is captured: when each connection joined and left, whether it agreed
+ * to compression, and when each chat message was relayed and how long it was. Usernames and message text are never written,
+ * so a trace from a production server can be shared safely.
+ *
+ * Relay threads call the record methods, which put a fixed-size entry into a ring of
+ * longs and return; a daemon writer thread drains the ring into the file. As with
+ * MessageIndex, a full ring drops events rather than slowing the chat down, and the
+ * number dropped is written to the trace so replay can report it.
+ *
+ * File format, all integers as unsigned LEB128 varints unless noted:
+ *   header  "CHATTRC1" (8 bytes), capture start in epoch milliseconds (8 bytes, big-endian)
+ *   event   type (1 byte), microseconds since the previous event, connection id, then
+ *           MESSAGE: length in bytes; DROPPED: number of events lost; nothing otherwise
+ */
+public class TrafficCapture implements Closeable {
+    static final byte[] MAGIC = "CHATTRC1".getBytes(StandardCharsets.US_ASCII);
+    static final int CONNECT = 1;
+    static final int MESSAGE = 2;
+    static final int DISCONNECT = 3;
+    static final int DROPPED = 4;
+    static final int DEFLATE = 5;        // The connection agreed to "/caps deflate"
+
+    private static final int RING_EVENTS = 64 * 1024;   // Events buffered ahead of the writer
+
+    // Ring of (nanoTime, type << 32 | connection, length) triples, guarded by ringLock
+    private final Object ringLock = new Object();
+    private final long[] ring = new long[RING_EVENTS * 3];
+    private long head;                   // Events consumed by the writer
+    private long tail;                   // Events recorded by relay threads
+    private long dropped;                // Events lost since the writer last looked
+    private boolean closed;
+
+    private final DataOutputStream out;
+    private final Thread writer;
+    private long lastMicros;             // Time of the previous event written, writer thread only
+    private final long[] batch = new long[RING_EVENTS * 3];
+
+    /**
+     * Starts capturing to the given file, replacing it if it exists
+     */
+    public TrafficCapture(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.write(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        lastMicros = System.nanoTime() / 1000;
+        writer = new Thread(this::runWriter, "traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void connected(int connection) {
+        record(CONNECT, connection, 0);
+    }
+
+    void message(int connection, int length) {
+        record(MESSAGE, connection, length);
+    }
+
+    void deflateAgreed(int connection) {
+        record(DEFLATE, connection, 0);
+    }
+
+    void disconnected(int connection) {
+        record(DISCONNECT, connection, 0);
+    }
+
+    private void record(int type, int connection, int length) {
+        synchronized (ringLock) {
+            if (closed) {
+                return;
+            }
+            if (tail - head == RING_EVENTS) {
+                dropped++;
+                return;
+            }
+            int slot = (int) (tail % RING_EVENTS) * 3;
+            ring[slot] = System.nanoTime();
+            ring[slot + 1] = (long) type << 32 | (connection & 0xFFFFFFFFL);
+            ring[slot + 2] = length;
+            tail++;
+            if (tail - head == 1) {
+                ringLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Writes the events still buffered and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (ringLock) {
+            closed = true;
+            ringLock.notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                int events;
+                long lost;
+                boolean last;
+                synchronized (ringLock) {
+                    while (head == tail && dropped == 0 && !closed) {
+                        ringLock.wait();
+                    }
+                    events = (int) (tail - head);
+                    for (int i = 0; i < events; i++) {
+                        int slot = (int) ((head + i) % RING_EVENTS) * 3;
+                        System.arraycopy(ring, slot, batch, i * 3, 3);
+                    }
+                    head = tail;
+                    lost = dropped;
+                    dropped = 0;
+                    last = closed;
+                }
+                for (int i = 0; i < events; i++) {
+                    long typeAndConnection = batch[i * 3 + 1];
+                    int type = (int) (typeAndConnection >>> 32);
+                    writeEvent(type, batch[i * 3], (int) typeAndConnection);
+                    if (type == MESSAGE) {
+                        writeVarint(batch[i * 3 + 2]);
+                    }
+                }
+                if (lost > 0) {
+                    writeEvent(DROPPED, lastMicros * 1000, 0);
+                    writeVarint(lost);
+                }
+                if (last) {
+                    out.flush();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Traffic capture stopped: " + e.getMessage());
+            synchronized (ringLock) {
+                closed = true;
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    private void writeEvent(int type, long nanos, int connection) throws IOException {
+        out.write(type);
+        // Events from different threads can reach the ring slightly out of order
+        long micros = nanos / 1000;
+        writeVarint(Math.max(0, micros - lastMicros));
+        lastMicros = Math.max(lastMicros, micros);
+        writeVarint(connection & 0xFFFFFFFFL);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned varint written by writeVarint
+     *
+     * @throws EOFException at the end of the trace
+     */
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+}
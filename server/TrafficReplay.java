@@ -0,0 +1,465 @@
+package server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+
+/**
+ * TrafficReplay drives a chat server with a trace recorded by TrafficCapture
+ * (ChatServer --capture), so changes to the relay path can be checked against the
+ * traffic shapes of a real deployment.
+ *
+ * Every captured connection becomes a replay client that joins, sends messages of the
+ * captured lengths at the captured times and leaves. Clients that agreed to compression
+ * in the capture send "/caps deflate" too, so long messages are compressed and relayed
+ * as "/z" frames just as they were then. Each message carries its send time, so the
+ * other clients can measure how long it took to reach them. The trace can be played at
+ * real speed, N times faster, or as fast as the server accepts it ("max").
+ *
+ * Results can be saved and compared with a later run, e.g. before and after a change:
+ *   java server.TrafficReplay prod.trace --speed 10 --save before.properties
+ *   java server.TrafficReplay prod.trace --speed 10 --baseline before.properties
+ *
+ * By default a ChatServer from the classpath is started in this process; pass --host and
+ * --port to replay against a server that is already running.
+ *
+ * Usage: java server.TrafficReplay <trace> [--speed N|max] [--host h] [--port p]
+ *                                   [--save file] [--baseline file]
+ */
+public class TrafficReplay {
+    private static final long QUIET_MILLIS = 1000;      // No deliveries for this long ends the run
+    private static final long MAX_SETTLE_MILLIS = 30_000;
+
+    private final String host;
+    private final int port;
+    private final Map<Long, ReplayClient> clients = new HashMap<>();
+    private final List<ReplayClient> allClients = new ArrayList<>();
+    private final LongAdder deliveries = new LongAdder();
+    private byte[] payload = new byte[256];     // Reused for every message sent
+    private long messagesSent;
+    private long droppedInTrace;
+    private long totalLagNanos;
+    private long maxLagNanos;
+    private long events;
+
+    TrafficReplay(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java server.TrafficReplay <trace> [--speed N|max] [--host h] [--port p]"
+                + " [--save file] [--baseline file]");
+            System.exit(2);
+        }
+        String trace = args[0];
+        double speed = 1;
+        String host = "127.0.0.1";
+        int port = -1;
+        String save = null;
+        String baseline = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--speed") && i + 1 < args.length) {
+                String value = args[++i];
+                speed = value.equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+            } else if (args[i].equals("--host") && i + 1 < args.length) {
+                host = args[++i];
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--save") && i + 1 < args.length) {
+                save = args[++i];
+            } else if (args[i].equals("--baseline") && i + 1 < args.length) {
+                baseline = args[++i];
+            }
+        }
+
+        ChatServer server = null;
+        if (port < 0) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            server = new ChatServer(port, null);
+            Thread serverThread = new Thread(server::start, "replay-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            while (!server.isRunning()) {
+                Thread.sleep(10);
+            }
+        }
+
+        TrafficReplay replay = new TrafficReplay(host, port);
+        Properties results = replay.run(new File(trace), speed);
+        if (server != null) {
+            server.stop();
+        }
+
+        System.out.println();
+        report(results, baseline != null ? load(baseline) : null);
+        if (save != null) {
+            try (OutputStream out = new FileOutputStream(save)) {
+                results.store(out, "TrafficReplay results for " + trace);
+            }
+            System.out.println("Saved results to " + save);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Plays the trace and waits for the last messages to be delivered
+     */
+    Properties run(File trace, double speed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(trace), 64 * 1024))) {
+            byte[] magic = new byte[TrafficCapture.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TrafficCapture.MAGIC)) {
+                throw new IOException(trace + " is not a traffic capture");
+            }
+            long capturedAt = in.readLong();
+            System.out.printf("Replaying capture from %s at %s speed%n", new Date(capturedAt),
+                Double.isInfinite(speed) ? "maximum" : speed + "x");
+
+            long traceMicros = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                traceMicros += TrafficCapture.readVarint(in);
+                long connection = TrafficCapture.readVarint(in);
+                long length = type == TrafficCapture.MESSAGE || type == TrafficCapture.DROPPED
+                    ? TrafficCapture.readVarint(in) : 0;
+                if (!Double.isInfinite(speed)) {
+                    waitUntil(start + (long) (traceMicros * 1000 / speed));
+                }
+                play(type, connection, length);
+                events++;
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+        long expected = settle();
+        long elapsedNanos = System.nanoTime() - start;
+        for (ReplayClient client : allClients) {
+            client.close();
+        }
+        return results(sendNanos, elapsedNanos, expected);
+    }
+
+    /**
+     * Sleeps until the given time, spinning for the last stretch so short gaps stay
+     * accurate; records how late the event was if the replay has fallen behind
+     */
+    private void waitUntil(long target) {
+        long remaining;
+        while ((remaining = target - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining > 2_000_000 ? remaining - 1_000_000 : remaining);
+        }
+        long lag = -remaining;
+        totalLagNanos += lag;
+        maxLagNanos = Math.max(maxLagNanos, lag);
+    }
+
+    private void play(int type, long connection, long length) throws IOException {
+        switch (type) {
+            case TrafficCapture.CONNECT:
+                client(connection);
+                break;
+            case TrafficCapture.MESSAGE:
+                client(connection).send(length);
+                messagesSent++;
+                break;
+            case TrafficCapture.DISCONNECT: {
+                ReplayClient client = clients.remove(connection);
+                if (client != null) {
+                    client.quit();
+                }
+                break;
+            }
+            case TrafficCapture.DROPPED:
+                droppedInTrace += length;
+                break;
+            case TrafficCapture.DEFLATE:
+                client(connection).agreeDeflate();
+                break;
+            default:
+                throw new IOException("Unknown event type " + type + " in trace");
+        }
+    }
+
+    /**
+     * Returns the replay client for a captured connection, connecting it if needed.
+     * Connections that were already open when the capture started join on first use.
+     */
+    private ReplayClient client(long connection) throws IOException {
+        ReplayClient client = clients.get(connection);
+        if (client == null) {
+            client = new ReplayClient(connection);
+            clients.put(connection, client);
+            allClients.add(client);
+        }
+        return client;
+    }
+
+    /**
+     * Waits until deliveries stop arriving
+     *
+     * @return Deliveries counted when the run ended
+     */
+    private long settle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_SETTLE_MILLIS;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long now = deliveries.sum();
+            if (now == last) {
+                break;
+            }
+            last = now;
+            Thread.sleep(QUIET_MILLIS);
+        }
+        return deliveries.sum();
+    }
+
+    private Properties results(long sendNanos, long elapsedNanos, long delivered) {
+        List<long[]> parts = new ArrayList<>();
+        int total = 0;
+        for (ReplayClient client : allClients) {
+            long[] samples = client.samples();
+            parts.add(samples);
+            total += samples.length;
+        }
+        long[] latencies = new long[total];
+        int position = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, latencies, position, part.length);
+            position += part.length;
+        }
+        Arrays.sort(latencies);
+
+        Properties results = new Properties();
+        results.setProperty("events", String.valueOf(events));
+        results.setProperty("connections", String.valueOf(allClients.size()));
+        results.setProperty("messages", String.valueOf(messagesSent));
+        results.setProperty("deliveries", String.valueOf(delivered));
+        results.setProperty("droppedInTrace", String.valueOf(droppedInTrace));
+        results.setProperty("sendSeconds", format(sendNanos / 1e9));
+        results.setProperty("deliveriesPerSecond", format(delivered / (elapsedNanos / 1e9)));
+        results.setProperty("latencyMeanMs", format(latencies.length == 0 ? 0
+            : Arrays.stream(latencies).average().orElse(0) / 1e6));
+        results.setProperty("latencyP50Ms", format(percentile(latencies, 0.50) / 1e6));
+        results.setProperty("latencyP99Ms", format(percentile(latencies, 0.99) / 1e6));
+        results.setProperty("latencyMaxMs", format(percentile(latencies, 1.0) / 1e6));
+        results.setProperty("scheduleLagMeanMs", format(events == 0 ? 0 : totalLagNanos / 1e6 / events));
+        results.setProperty("scheduleLagMaxMs", format(maxLagNanos / 1e6));
+        return results;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static Properties load(String file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Prints the results, with the change from the baseline where there is one
+     */
+    private static void report(Properties results, Properties baseline) {
+        String[] keys = {"events", "connections", "messages", "deliveries", "droppedInTrace",
+            "sendSeconds", "deliveriesPerSecond", "latencyMeanMs", "latencyP50Ms", "latencyP99Ms",
+            "latencyMaxMs", "scheduleLagMeanMs", "scheduleLagMaxMs"};
+        for (String key : keys) {
+            String value = results.getProperty(key);
+            String before = baseline != null ? baseline.getProperty(key) : null;
+            if (before == null) {
+                System.out.printf("%-20s %14s%n", key, value);
+                continue;
+            }
+            double old = Double.parseDouble(before);
+            double now = Double.parseDouble(value);
+            String change = old == 0 ? "" : String.format(Locale.ROOT, "%+.1f%%", (now - old) / old * 100);
+            System.out.printf("%-20s %14s   baseline %14s   %s%n", key, value, before, change);
+        }
+    }
+
+    /**
+     * One captured connection: writes its messages from the replay thread and reads
+     * everything the server relays to it on its own thread
+     */
+    private class ReplayClient extends Thread {
+        private final Socket socket;
+        private final OutputStream out;
+        private boolean deflate;                   // Sends long messages compressed
+        private long[] samples = new long[1024];   // Delivery latencies in nanoseconds
+        private int sampleCount;
+
+        ReplayClient(long connection) throws IOException {
+            super("replay-" + connection);
+            setDaemon(true);
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(("replay" + connection + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            start();
+        }
+
+        void agreeDeflate() throws IOException {
+            out.write(("/caps " + MessageCompression.CAPABILITY + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            deflate = true;
+        }
+
+        /**
+         * Sends a message of the captured length, starting with its send time, as a
+         * compressed frame if the client agreed to compression and the message is long
+         */
+        void send(long length) throws IOException {
+            byte[] stamp = ("t" + System.nanoTime() + " ").getBytes(StandardCharsets.US_ASCII);
+            int size = (int) Math.max(length, stamp.length);
+            if (payload.length < size + 1) {
+                payload = new byte[size + 1];
+            }
+            System.arraycopy(stamp, 0, payload, 0, stamp.length);
+            Arrays.fill(payload, stamp.length, size, (byte) 'x');
+            payload[size] = '\n';
+            if (deflate && size >= MessageCompression.THRESHOLD) {
+                MessageCompression context = MessageCompression.acquire();
+                try {
+                    if (context.compress(null, payload, 0, size)) {
+                        out.write(context.getHeader(), 0, context.getHeaderLength());
+                        out.write('\n');
+                        out.write(context.getOutput(), 0, context.getOutputLength());
+                        out.flush();
+                        return;
+                    }
+                } finally {
+                    MessageCompression.release(context);
+                }
+            }
+            out.write(payload, 0, size + 1);
+            out.flush();
+        }
+
+        void quit() throws IOException {
+            out.write("/quit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        synchronized long[] samples() {
+            return Arrays.copyOf(samples, sampleCount);
+        }
+
+        @Override
+        public void run() {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()))) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                String line;
+                while ((line = readLine(in, buffer)) != null) {
+                    if (line.startsWith("/z ")) {
+                        line = expand(in, line);
+                        if (line == null) {
+                            continue;
+                        }
+                    }
+                    long received = System.nanoTime();
+                    // Relayed replay messages read "replayN: t<nanos> xxx..."
+                    int stamp = line.indexOf(": t");
+                    if (stamp < 0 || !line.startsWith("replay")) {
+                        continue;
+                    }
+                    int end = line.indexOf(' ', stamp + 3);
+                    try {
+                        long sent = Long.parseLong(line.substring(stamp + 3, end < 0 ? line.length() : end));
+                        record(received - sent);
+                        deliveries.increment();
+                    } catch (NumberFormatException e) {
+                        // Not a replay message
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed
+            }
+        }
+
+        /**
+         * Reads one line, or returns null at the end of the stream
+         */
+        private String readLine(InputStream in, ByteArrayOutputStream buffer) throws IOException {
+            buffer.reset();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return buffer.size() > 0 ? buffer.toString(StandardCharsets.UTF_8) : null;
+                }
+                buffer.write(b);
+            }
+            return buffer.toString(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the deflate bytes announced by a "/z" header and expands them
+         *
+         * @return The message, or null if it could not be expanded
+         */
+        private String expand(DataInputStream in, String header) throws IOException {
+            String[] parts = header.split(" ");
+            int compressedLength;
+            int originalLength;
+            try {
+                compressedLength = Integer.parseInt(parts[1]);
+                originalLength = Integer.parseInt(parts[2]);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed compressed frame header: " + header);
+            }
+            if (compressedLength < 0 || compressedLength > MessageCompression.MAX_MESSAGE_SIZE) {
+                throw new IOException("Compressed frame too large: " + compressedLength);
+            }
+            byte[] compressed = new byte[compressedLength];
+            in.readFully(compressed);
+            MessageCompression context = MessageCompression.acquire();
+            try {
+                context.decompress(compressed, compressedLength, originalLength);
+                return new String(context.getOutput(), 0, context.getOutputLength(), StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                return null;  // Counted as not delivered
+            } finally {
+                MessageCompression.release(context);
+            }
+        }
+
+        private synchronized void record(long latency) {
+            if (sampleCount == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampleCount++] = latency;
+        }
+    }
+}
@@ -4,70 +4,86 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.List;
+import server.AdminServer;
 
 /**
  * ServerGUI provides a graphical interface for managing a chat server.
- * This class handles both the GUI components and the server networking functionality.
- * It allows monitoring of connected clients, server status, and message logs.
+ * The server itself runs headless in an AdminServer process; this window is only a
+ * console attached to its admin socket, so GUI work never runs on the server's threads.
+ * It allows monitoring of connected clients, server status, and message logs, and
+ * several windows can be attached to the same server at once.
  */
 public class ServerGUI extends JFrame {
     // Default port for the chat server
     private static final int DEFAULT_PORT = 5000;
-    
-    // Core server components
-    private ServerSocket serverSocket;        // Handles incoming client connections
-    private boolean isRunning;                // Server status flag
-    private ExecutorService executorService;  // Thread pool for client handlers
-    private Set<ClientHandler> clients;       // Set of connected clients
-    
+
+    // Admin connection
+    private Socket adminSocket;               // Connection to the AdminServer
+    private PrintWriter adminOut;             // Commands to the AdminServer
+    private volatile boolean isRunning;       // Server status from the latest snapshot
+
     // GUI Components
     private JLabel statusLabel;               // Displays server status (running/stopped)
-    private JPanel clientListPanel;           // Shows list of connected clients
-    private JTextArea logArea;                // Displays server events and messages
+    private JLabel statsLabel;                // Displays clients and relayed messages
+    private DefaultListModel<String> clientListModel;  // Connected clients from the latest snapshot
+    private JList<String> clientList;         // Shows list of connected clients
+    private JTextArea logArea;                // Displays server events
     private JTextField serverIPField;         // Shows server's IP address
     private JTextField portField;             // Shows/allows port configuration
+    private JTextField adminPortField;        // Port of the local AdminServer
+    private JCheckBox tlsCheckBox;            // Requires TLS for client connections
+    private JButton connectButton;            // Attaches to / detaches from the AdminServer
     private JButton startStopButton;          // Controls server start/stop
-    
+    private JButton kickButton;               // Disconnects the selected client
+
     /**
-     * Constructor initializes the server GUI and core components
+     * Constructor initializes the console and attaches to the local AdminServer
      */
     public ServerGUI() {
         super("Socket Chat Server");
-        // Initialize synchronized set for thread-safe client management
-        clients = Collections.synchronizedSet(new HashSet<>());
-        // Create thread pool that grows/shrinks based on demand
-        executorService = Executors.newCachedThreadPool();
-        
+
         setLayout(new BorderLayout());
         setSize(800, 600);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        
+
         initComponents();     // Setup GUI components
         setupActions();       // Setup event handlers
         setVisible(true);
+        connect();
     }
-    
+
     /**
      * Initializes and arranges all GUI components
      */
     private void initComponents() {
-        // Server Status Panel - Shows current server state and control button
+        // Server Status Panel - Shows current server state and control buttons
         JPanel serverStatusPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         serverStatusPanel.setBorder(BorderFactory.createTitledBorder("Server Status"));
-        statusLabel = new JLabel("Server is stopped");
+        statusLabel = new JLabel("Not connected");
+        statsLabel = new JLabel();
+        connectButton = new JButton("Connect");
         startStopButton = new JButton("Start Server");
+        startStopButton.setEnabled(false);
         serverStatusPanel.add(statusLabel);
+        serverStatusPanel.add(connectButton);
         serverStatusPanel.add(startStopButton);
-        
+        serverStatusPanel.add(statsLabel);
+
         // Client List Panel - Shows connected clients
-        clientListPanel = new JPanel();
+        JPanel clientListPanel = new JPanel(new BorderLayout());
         clientListPanel.setBorder(BorderFactory.createTitledBorder("Client List"));
-        clientListPanel.setLayout(new BoxLayout(clientListPanel, BoxLayout.Y_AXIS));
         clientListPanel.setPreferredSize(new Dimension(200, 0));
-        
-        // Log Panel - Shows server events and message history
+        clientListModel = new DefaultListModel<>();
+        clientList = new JList<>(clientListModel);
+        kickButton = new JButton("Kick");
+        kickButton.setEnabled(false);
+        clientListPanel.add(new JScrollPane(clientList), BorderLayout.CENTER);
+        clientListPanel.add(kickButton, BorderLayout.SOUTH);
+
+        // Log Panel - Shows server events
         JPanel logPanel = new JPanel(new BorderLayout());
         logPanel.setBorder(BorderFactory.createTitledBorder("Logs"));
         logArea = new JTextArea();
@@ -75,11 +91,11 @@ public class ServerGUI extends JFrame {
         JScrollPane scrollPane = new JScrollPane(logArea);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         logPanel.add(scrollPane, BorderLayout.CENTER);
-        
+
         // Configuration Panel - Shows server IP and port settings
-        JPanel configPanel = new JPanel(new GridLayout(2, 2, 5, 5));
+        JPanel configPanel = new JPanel(new GridLayout(4, 2, 5, 5));
         configPanel.setBorder(BorderFactory.createTitledBorder("Configuration"));
-        
+
         // Get and display local IP address
         try {
             String localIP = InetAddress.getLocalHost().getHostAddress();
@@ -88,261 +104,257 @@ public class ServerGUI extends JFrame {
             serverIPField = new JTextField("127.0.0.1");
         }
         serverIPField.setEditable(false);
-        
+
         portField = new JTextField(String.valueOf(DEFAULT_PORT));
-        
+        adminPortField = new JTextField(String.valueOf(AdminServer.DEFAULT_ADMIN_PORT));
+
+        // TLS uses the key store named by the AdminServer's javax.net.ssl.keyStore properties
+        tlsCheckBox = new JCheckBox("Require TLS");
+
         configPanel.add(new JLabel("Server IP:"));
         configPanel.add(serverIPField);
         configPanel.add(new JLabel("Port:"));
         configPanel.add(portField);
-        
+        configPanel.add(new JLabel("Encryption:"));
+        configPanel.add(tlsCheckBox);
+        configPanel.add(new JLabel("Admin port:"));
+        configPanel.add(adminPortField);
+
         // Arrange panels in the frame
         add(serverStatusPanel, BorderLayout.NORTH);
         add(clientListPanel, BorderLayout.WEST);
         add(logPanel, BorderLayout.CENTER);
         add(configPanel, BorderLayout.SOUTH);
     }
-    
+
     /**
      * Sets up event handlers for GUI components
      */
     private void setupActions() {
+        connectButton.addActionListener(e -> {
+            if (adminSocket == null) {
+                connect();
+            } else {
+                disconnect();
+            }
+        });
+
         // Toggle server start/stop when button is clicked
         startStopButton.addActionListener(e -> {
             if (!isRunning) {
                 startServer();
             } else {
-                stopServer();
+                sendCommand("/stop");
             }
         });
-        
-        // Ensure clean shutdown when window is closed
+
+        kickButton.addActionListener(e -> {
+            String selected = clientList.getSelectedValue();
+            if (selected != null) {
+                // Entries read "name (address)"
+                int address = selected.lastIndexOf(" (");
+                String name = address >= 0 ? selected.substring(0, address) : selected;
+                sendCommand("/kick " + URLEncoder.encode(name, StandardCharsets.UTF_8));
+            }
+        });
+
+        // Closing the console leaves the server running
         addWindowListener(new java.awt.event.WindowAdapter() {
             @Override
             public void windowClosing(java.awt.event.WindowEvent windowEvent) {
-                stopServer();
+                disconnect();
             }
         });
     }
-    
+
     /**
-     * Starts the server and begins accepting client connections
+     * Attaches to the AdminServer on this machine and starts reading its snapshots
      */
-    private void startServer() {
+    private void connect() {
         try {
-            int port = Integer.parseInt(portField.getText().trim());
-            serverSocket = new ServerSocket(port);
-            isRunning = true;
-            
-            log("Server started on port " + port);
-            statusLabel.setText("Server is running");
-            startStopButton.setText("Stop Server");
-            portField.setEnabled(false);
-            
-            // Accept client connections in a separate thread
-            new Thread(() -> {
-                while (isRunning) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        String clientIP = clientSocket.getInetAddress().getHostAddress();
-                        log("New client connected: " + clientIP);
-                        
-                        // Create and start new client handler
-                        ClientHandler clientHandler = new ClientHandler(clientSocket);
-                        clients.add(clientHandler);
-                        executorService.execute(clientHandler);
-                    } catch (IOException e) {
-                        if (isRunning) {
-                            log("Error accepting client connection: " + e.getMessage());
-                        }
-                    }
-                }
-            }).start();
-            
+            int adminPort = Integer.parseInt(adminPortField.getText().trim());
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), adminPort);
+            adminSocket = socket;
+            adminOut = new PrintWriter(new OutputStreamWriter(
+                socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            log("Connected to admin server on port " + adminPort);
+            connectButton.setText("Disconnect");
+            adminPortField.setEnabled(false);
+            startStopButton.setEnabled(true);
+            kickButton.setEnabled(true);
+
+            // Read snapshots in a separate thread
+            Thread reader = new Thread(() -> readSnapshots(socket, in), "admin-console");
+            reader.setDaemon(true);
+            reader.start();
         } catch (NumberFormatException e) {
-            log("Invalid port number");
+            log("Invalid admin port number");
         } catch (IOException e) {
-            log("Could not start server: " + e.getMessage());
+            log("Could not reach the admin server: " + e.getMessage()
+                + ". Start it with: java server.AdminServer");
         }
     }
-    
+
     /**
-     * Stops the server and closes all client connections
+     * Detaches from the AdminServer; the chat server keeps running
      */
-    private void stopServer() {
-        isRunning = false;
+    private void disconnect() {
+        if (adminSocket == null) {
+            return;
+        }
+        adminOut.println("/quit");
         try {
-            // Close all client connections
-            for (ClientHandler client : clients) {
-                client.close();
-            }
-            clients.clear();
-            updateClientList();
-            
-            // Shutdown thread pool
-            executorService.shutdown();
-            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-            }
-            
-            // Close server socket
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            
-            log("Server stopped");
-            statusLabel.setText("Server is stopped");
-            startStopButton.setText("Start Server");
-            portField.setEnabled(true);
-            
-        } catch (IOException | InterruptedException e) {
-            log("Error stopping server: " + e.getMessage());
+            adminSocket.close();
+        } catch (IOException e) {
+            log("Error closing admin connection: " + e.getMessage());
         }
+        adminSocket = null;
+        adminOut = null;
+        showDisconnected();
     }
-    
+
     /**
-     * Updates the GUI client list panel
+     * Asks the AdminServer to start the chat server with the configured settings
      */
-    private void updateClientList() {
-        SwingUtilities.invokeLater(() -> {
-            clientListPanel.removeAll();
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    clientListPanel.add(new JLabel(client.getClientInfo()));
-                }
-            }
-            clientListPanel.revalidate();
-            clientListPanel.repaint();
-        });
+    private void startServer() {
+        try {
+            int port = Integer.parseInt(portField.getText().trim());
+            sendCommand("/start " + port + (tlsCheckBox.isSelected() ? " tls" : ""));
+        } catch (NumberFormatException e) {
+            log("Invalid port number");
+        }
     }
-    
+
+    private void sendCommand(String command) {
+        if (adminOut != null) {
+            adminOut.println(command);
+        }
+    }
+
     /**
-     * Adds a message to the log area
+     * Reads snapshots until the connection closes. Each snapshot is applied to the
+     * window in a single event, however many lines it holds.
      */
-    private void log(String message) {
+    private void readSnapshots(Socket socket, BufferedReader in) {
+        List<String> snapshot = new ArrayList<>();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("/end")) {
+                    List<String> lines = snapshot;
+                    SwingUtilities.invokeLater(() -> applySnapshot(lines));
+                    snapshot = new ArrayList<>();
+                } else {
+                    snapshot.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
         SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
+            if (adminSocket == socket) {
+                adminSocket = null;
+                adminOut = null;
+                log("Lost connection to the admin server");
+                showDisconnected();
+            }
         });
     }
-    
+
     /**
-     * Inner class that handles individual client connections
+     * Updates the window from one snapshot; runs on the event dispatch thread
      */
-    private class ClientHandler implements Runnable {
-        private Socket clientSocket;          // Client's socket connection
-        private PrintWriter out;              // Output stream to client
-        private BufferedReader in;            // Input stream from client
-        private String clientName;            // Client's username
-        private String clientIP;              // Client's IP address
-        
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-            this.clientIP = socket.getInetAddress().getHostAddress();
-        }
-        
-        public String getClientInfo() {
-            return clientName + " (" + clientIP + ")";
-        }
-        
-        @Override
-        public void run() {
-            try {
-                setupStreams();
-                processClientMessages();
-            } catch (IOException e) {
-                log("Error in client handler: " + e.getMessage());
-            } finally {
-                close();
-            }
-        }
-        
-        /**
-         * Sets up input/output streams and processes initial client connection
-         */
-        private void setupStreams() throws IOException {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            
-            // First message from client is their username
-            clientName = in.readLine();
-            String joinMessage = "SERVER: " + clientName + " has joined the chat";
-            broadcastMessage(joinMessage);
-            updateClientList();
-            sendClientList();
-        }
-        
-        /**
-         * Main message processing loop
-         */
-        private void processClientMessages() throws IOException {
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.equals("/quit")) {
+    private void applySnapshot(List<String> lines) {
+        StringBuilder logText = new StringBuilder();
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            switch (parts[0]) {
+                case "/status":
+                    showStatus(parts);
                     break;
-                }
-                String fullMessage = clientName + ": " + message;
-                broadcastMessage(fullMessage);
-                log(fullMessage);
-            }
-        }
-        
-        /**
-         * Sends a message to all connected clients except the sender
-         */
-        private void broadcastMessage(String message) {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client != this) {
-                        client.sendMessage(message);
+                case "/stats":
+                    statsLabel.setText(parts[1] + " clients, " + parts[2] + " messages relayed");
+                    break;
+                case "/clients":
+                    clientListModel.clear();
+                    for (int i = 1; i < parts.length; i++) {
+                        clientListModel.addElement(decode(parts[i]));
                     }
-                }
-            }
-        }
-        
-        /**
-         * Sends the list of connected users to all clients
-         */
-        private void sendClientList() {
-            StringBuilder userList = new StringBuilder("Connected users: ");
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    userList.append(client.clientName).append(", ");
-                }
+                    break;
+                case "/log":
+                    logText.append(decode(argument(line))).append('\n');
+                    break;
+                case "/log-dropped":
+                    logText.append("(").append(argument(line)).append(" log events dropped)\n");
+                    break;
+                case "/error":
+                    logText.append("Error: ").append(decode(argument(line))).append('\n');
+                    break;
+                default:
+                    break;  // Newer server - ignore what we don't understand
             }
-            broadcastMessage(userList.toString());
         }
-        
-        /**
-         * Sends a message to this client
-         */
-        public void sendMessage(String message) {
-            out.println(message);
+        if (logText.length() > 0) {
+            logArea.append(logText.toString());
+            logArea.setCaretPosition(logArea.getDocument().getLength());
         }
-        
-        /**
-         * Closes the client connection and performs cleanup
-         */
-        public void close() {
-            try {
-                clients.remove(this);
-                if (clientName != null) {
-                    broadcastMessage("SERVER: " + clientName + " has left the chat");
-                }
-                updateClientList();
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (clientSocket != null) clientSocket.close();
-            } catch (IOException e) {
-                log("Error closing client handler: " + e.getMessage());
-            }
+    }
+
+    /**
+     * @return Everything after the command, which is empty for "/log " with an empty message
+     */
+    private static String argument(String line) {
+        String[] parts = line.split(" ", 2);
+        return parts.length == 2 ? parts[1] : "";
+    }
+
+    private void showStatus(String[] parts) {
+        isRunning = parts[1].equals("running");
+        if (isRunning) {
+            statusLabel.setText("Server is running on port " + parts[2]
+                + (parts[3].equals("tls") ? " (TLS)" : ""));
+            startStopButton.setText("Stop Server");
+        } else {
+            statusLabel.setText("Server is stopped");
+            statsLabel.setText("");
+            startStopButton.setText("Start Server");
         }
+        portField.setEnabled(!isRunning);
+        tlsCheckBox.setEnabled(!isRunning);
+    }
+
+    private void showDisconnected() {
+        isRunning = false;
+        statusLabel.setText("Not connected");
+        statsLabel.setText("");
+        clientListModel.clear();
+        connectButton.setText("Connect");
+        adminPortField.setEnabled(true);
+        startStopButton.setEnabled(false);
+        kickButton.setEnabled(false);
+        portField.setEnabled(true);
+        tlsCheckBox.setEnabled(true);
+    }
+
+    private static String decode(String text) {
+        return URLDecoder.decode(text, StandardCharsets.UTF_8);
     }
-    
+
+    /**
+     * Adds a message to the log area; only called on the event dispatch thread
+     */
+    private void log(String message) {
+        logArea.append(message + "\n");
+        logArea.setCaretPosition(logArea.getDocument().getLength());
+    }
+
     /**
-     * Main method to start the server application
+     * Main method to start the server console
      */
     public static void main(String[] args) {
         SwingUtilities.invokeLater(ServerGUI::new);
     }
-}
\ No newline at end of file
+}